@@ -0,0 +1,138 @@
+package dev.kikugie.xoicmod.javanbs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+// Struct-of-arrays song model: note i is described by the i-th element of every column, sorted by tick.
+// Values are kept as read, so instrument, key and volume are signed bytes like in NBSReader.readSong
+public class NBSColumns {
+   private final NBSHeader header;
+   private final int size;
+   private final int[] tick;
+   private final short[] layer;
+   private final byte[] instrument;
+   private final byte[] key;
+   private final byte[] volume;
+   private final short[] pitch;
+   private final byte[] stereo;
+
+   private NBSColumns(NBSHeader header, int size, int[] tick, short[] layer, byte[] instrument, byte[] key, byte[] volume, short[] pitch, byte[] stereo) {
+      this.header = header;
+      this.size = size;
+      this.tick = tick;
+      this.layer = layer;
+      this.instrument = instrument;
+      this.key = key;
+      this.volume = volume;
+      this.pitch = pitch;
+      this.stereo = stereo;
+   }
+
+   public static NBSColumns read(String file) throws IOException {
+      Builder builder = new Builder();
+      NBSHeader header = NBSReader.stream(file, builder);
+      return builder.build(header);
+   }
+
+   public static NBSColumns read(ByteBuffer buffer) throws IOException {
+      Builder builder = new Builder();
+      NBSHeader header = NBSReader.stream(buffer, builder);
+      return builder.build(header);
+   }
+
+   public NBSHeader getHeader() {return header;}
+
+   public int size() {return size;}
+
+   // Column getters return the backing arrays, which may be longer than size()
+   public int[] getTicks() {return tick;}
+
+   public short[] getLayers() {return layer;}
+
+   public byte[] getInstruments() {return instrument;}
+
+   public byte[] getKeys() {return key;}
+
+   public byte[] getVolumes() {return volume;}
+
+   public short[] getPitches() {return pitch;}
+
+   public byte[] getStereos() {return stereo;}
+
+   public int getTick(int i) {return tick[i];}
+
+   public int getLayer(int i) {return layer[i];}
+
+   public int getInstrument(int i) {return instrument[i];}
+
+   public int getKey(int i) {return key[i];}
+
+   public int getVolume(int i) {return volume[i];}
+
+   public int getPitch(int i) {return pitch[i];}
+
+   public int getStereo(int i) {return stereo[i];}
+
+   // Compatibility view, NBSNote objects are created on access the same way NBSReader.readSong creates them
+   public List<NBSNote> notes() {
+      return new AbstractList<>() {
+         @Override
+         public NBSNote get(int i) {
+            if (i < 0 || i >= size) {throw new IndexOutOfBoundsException(i);}
+            return NBSReader.note(getTick(i), getLayer(i), getInstrument(i), getKey(i), getVolume(i), getPitch(i), getStereo(i));
+         }
+
+         @Override
+         public int size() {return size;}
+      };
+   }
+
+   public NBSSong toSong() {
+      NBSSong song = new NBSSong("");
+      song.setHeader(header);
+      song.getNotes().addAll(notes());
+      return song;
+   }
+
+   private static class Builder implements NoteSink {
+      private int size = 0;
+      private int[] tick = new int[256];
+      private short[] layer = new short[256];
+      private byte[] instrument = new byte[256];
+      private byte[] key = new byte[256];
+      private byte[] volume = new byte[256];
+      private short[] pitch = new short[256];
+      private byte[] stereo = new byte[256];
+
+      @Override
+      public void note(int tick, int layer, int instrument, int key, int volume, int pitch, int stereo) {
+         if (size == this.tick.length) {grow();}
+         this.tick[size] = tick;
+         this.layer[size] = (short) layer;
+         this.instrument[size] = (byte) instrument;
+         this.key[size] = (byte) key;
+         this.volume[size] = (byte) volume;
+         this.pitch[size] = (short) pitch;
+         this.stereo[size] = (byte) stereo;
+         size++;
+      }
+
+      private void grow() {
+         int capacity = tick.length * 2;
+         tick = Arrays.copyOf(tick, capacity);
+         layer = Arrays.copyOf(layer, capacity);
+         instrument = Arrays.copyOf(instrument, capacity);
+         key = Arrays.copyOf(key, capacity);
+         volume = Arrays.copyOf(volume, capacity);
+         pitch = Arrays.copyOf(pitch, capacity);
+         stereo = Arrays.copyOf(stereo, capacity);
+      }
+
+      private NBSColumns build(NBSHeader header) {
+         return new NBSColumns(header, size, tick, layer, instrument, key, volume, pitch, stereo);
+      }
+   }
+}
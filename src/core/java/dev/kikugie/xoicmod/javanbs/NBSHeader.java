@@ -1,7 +1,7 @@
 package dev.kikugie.xoicmod.javanbs;
 
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 // https://github.com/omninbs/javanbs
 public class NBSHeader {
@@ -27,38 +27,38 @@ public class NBSHeader {
    private int maxLoops;
    private int loopStart;
 
-   public static NBSHeader readHeader(FileInputStream fis) throws IOException {
+   public static NBSHeader readHeader(ByteBuffer buffer) throws IOException {
       int version = 0;
       NBSHeader header = new NBSHeader("");
 
-      header.length = NBSReader.readBytes(fis, 2);
+      header.length = NBSReader.readBytes(buffer, 2);
 
       if (header.length == 0) { // version > 0
-         header.version = NBSReader.readBytes(fis, 1);
-         header.defaultInstruments = NBSReader.readBytes(fis, 1);
-         if (header.version >= 3) {header.length = NBSReader.readBytes(fis, 2);}
+         header.version = NBSReader.readBytes(buffer, 1);
+         header.defaultInstruments = NBSReader.readBytes(buffer, 1);
+         if (header.version >= 3) {header.length = NBSReader.readBytes(buffer, 2);}
       }
 
-      header.layerCount = NBSReader.readBytes(fis, 2);
-      header.name = NBSReader.readString(fis);
-      header.author = NBSReader.readString(fis);
-      header.originalAuthor = NBSReader.readString(fis);
-      header.description = NBSReader.readString(fis);
-      header.tempo = NBSReader.readBytes(fis, 2);
-      header.autoSaving = NBSReader.readBytes(fis, 1) != 0;
-      header.autoSavingDuration = NBSReader.readBytes(fis, 1);
-      header.timeSignature = NBSReader.readBytes(fis, 1);
-      header.minutesSpent = NBSReader.readBytes(fis, 4);
-      header.leftClicks = NBSReader.readBytes(fis, 4);
-      header.rightClicks = NBSReader.readBytes(fis, 4);
-      header.noteblocksAdded = NBSReader.readBytes(fis, 4);
-      header.noteblocksRemoved = NBSReader.readBytes(fis, 4);
-      header.songOrigin = NBSReader.readString(fis);
+      header.layerCount = NBSReader.readBytes(buffer, 2);
+      header.name = NBSReader.readString(buffer);
+      header.author = NBSReader.readString(buffer);
+      header.originalAuthor = NBSReader.readString(buffer);
+      header.description = NBSReader.readString(buffer);
+      header.tempo = NBSReader.readBytes(buffer, 2);
+      header.autoSaving = NBSReader.readBytes(buffer, 1) != 0;
+      header.autoSavingDuration = NBSReader.readBytes(buffer, 1);
+      header.timeSignature = NBSReader.readBytes(buffer, 1);
+      header.minutesSpent = NBSReader.readBytes(buffer, 4);
+      header.leftClicks = NBSReader.readBytes(buffer, 4);
+      header.rightClicks = NBSReader.readBytes(buffer, 4);
+      header.noteblocksAdded = NBSReader.readBytes(buffer, 4);
+      header.noteblocksRemoved = NBSReader.readBytes(buffer, 4);
+      header.songOrigin = NBSReader.readString(buffer);
 
       if (header.version >= 4) {
-         header.looping = NBSReader.readBytes(fis, 1) != 0;
-         header.maxLoops = NBSReader.readBytes(fis, 1);
-         header.loopStart = NBSReader.readBytes(fis, 2);
+         header.looping = NBSReader.readBytes(buffer, 1) != 0;
+         header.maxLoops = NBSReader.readBytes(buffer, 1);
+         header.loopStart = NBSReader.readBytes(buffer, 2);
       }
 
       return header;
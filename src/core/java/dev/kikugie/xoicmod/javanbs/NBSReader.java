@@ -0,0 +1,134 @@
+package dev.kikugie.xoicmod.javanbs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// https://github.com/omninbs/javanbs
+public class NBSReader {
+   // Reads the whole file with a single bulk read; fields are then decoded from the heap buffer
+   public static ByteBuffer open(String file) throws IOException {
+      return ByteBuffer.wrap(Files.readAllBytes(Path.of(file))).order(ByteOrder.LITTLE_ENDIAN);
+   }
+
+   // Reads only as much of the file as the header needs, starting with 4 KiB and growing for long descriptions
+   public static NBSHeader readHeader(String file) throws IOException {
+      try (FileChannel channel = FileChannel.open(Path.of(file))) {
+         long size = channel.size();
+         int capacity = (int) Math.min(size, 4096);
+         while (true) {
+            ByteBuffer buffer = ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+            while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) > 0) {}
+            buffer.flip();
+
+            boolean truncated = capacity < size;
+            try {
+               NBSHeader header = NBSHeader.readHeader(buffer);
+               // A string cut at the end of the prefix parses without errors, so a fully consumed prefix is retried
+               if (!truncated || buffer.hasRemaining()) {return header;}
+            } catch (IOException e) {
+               if (!truncated) {throw e;}
+            }
+            capacity = (int) Math.min(size, capacity * 4L);
+         }
+      }
+   }
+
+   public static int readBytes(ByteBuffer buffer, int bytes, boolean signed) throws IOException {
+      if (bytes < 1 || bytes > 4) {
+         throw new IllegalArgumentException("Number of bytes must be between 1 and 4.");
+      }
+
+      if (buffer.remaining() < bytes) {
+         throw new IOException("Unable to read the required number of bytes");
+      }
+
+      // Buffer is little-endian, so these match the manual conversion
+      switch (bytes) {
+         case 1: return signed ? buffer.get() : buffer.get() & 0xFF;
+         case 2: return signed ? buffer.getShort() : buffer.getShort() & 0xFFFF;
+         case 4: return buffer.getInt();
+         default:
+            int result = (buffer.get() & 0xFF) | (buffer.get() & 0xFF) << 8 | (buffer.get() & 0xFF) << 16;
+            return signed ? (result << 8) >> 8 : result;
+      }
+   }
+
+   public static int readBytes(ByteBuffer buffer, int bytes) throws IOException {return readBytes(buffer, bytes, true);}
+
+   public static String readString(ByteBuffer buffer) throws IOException {
+      int len = readBytes(buffer, 4);
+
+      // Truncated strings are cut at the end of the file, same as the byte-by-byte reader
+      int count = Math.max(0, Math.min(len, buffer.remaining()));
+      // Direct and read-only buffers, like mapped files, have no array to decode from
+      if (!buffer.hasArray()) {
+         byte[] bytes = new byte[count];
+         buffer.get(bytes);
+         return new String(bytes, StandardCharsets.ISO_8859_1);
+      }
+      String result = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), count, StandardCharsets.ISO_8859_1);
+      buffer.position(buffer.position() + count);
+      return result;
+   }
+
+   public static NBSSong readSong(String file) throws IOException {
+      NBSSong song = new NBSSong("");
+      song.setHeader(stream(file, (tick, layer, instrument, key, volume, pitch, stereo) ->
+         song.getNotes().add(note(tick, layer, instrument, key, volume, pitch, stereo))));
+      return song;
+   }
+
+   static NBSNote note(int tick, int layer, int instrument, int key, int volume, int pitch, int stereo) {
+      NBSNote note = new NBSNote(0, 0, 0, 0, 0);
+      note.setTick(tick);
+      note.setLayer(layer);
+      note.setInstrument(instrument);
+      note.setKey(key);
+      note.setVolume(volume);
+      note.setStereo(stereo);
+      note.setPitch(pitch);
+      return note;
+   }
+
+   // Parses the note stream without creating NBSNote objects. Volume, stereo and pitch are 0 before version 4
+   public static NBSHeader stream(String file, NoteSink sink) throws IOException {
+      return stream(open(file), sink);
+   }
+
+   public static NBSHeader stream(ByteBuffer buffer, NoteSink sink) throws IOException {
+      NBSHeader header = NBSHeader.readHeader(buffer);
+      sink.header(header);
+      boolean extended = header.getVersion() >= 4;
+
+      int tick = -1;
+      while (true) {
+         int tickJumps = readBytes(buffer, 2);
+         if (tickJumps == 0) {break;}
+         tick += tickJumps;
+
+         int layer = -1;
+         while (true) {
+            int layerJumps = readBytes(buffer, 2);
+            if (layerJumps == 0) {break;}
+            layer += layerJumps;
+
+            int instrument = readBytes(buffer, 1);
+            int key = readBytes(buffer, 1);
+            int volume = 0; int stereo = 0; int pitch = 0;
+            if (extended) {
+               volume = readBytes(buffer, 1);
+               stereo = readBytes(buffer, 1, false) - 100;
+               pitch = readBytes(buffer, 2);
+            }
+            sink.note(tick, layer, instrument, key, volume, pitch, stereo);
+         }
+      }
+
+      return header;
+   }
+}
@@ -0,0 +1,8 @@
+package dev.kikugie.xoicmod.javanbs;
+
+// Receives notes from NBSReader.stream as primitives, in file order (by tick, then by layer)
+public interface NoteSink {
+   default void header(NBSHeader header) {}
+
+   void note(int tick, int layer, int instrument, int key, int volume, int pitch, int stereo);
+}
@@ -0,0 +1,174 @@
+package dev.kikugie.xoicmod.jukebox;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Fills one box at a time: plans the clicks against the inventory, sends them within the click budget, waits for
+// the server to settle and repairs the slots that still differ. Drives the game and the simulator alike
+final class BoxFiller {
+    private static final Logger LOGGER = LoggerFactory.getLogger(BoxFiller.class);
+    private static final int CAPACITY = FillPlan.SLOTS * 3;
+
+    final PlacementPlanner planner;
+    // Mapped items in the player inventory, kept up to date by the handler
+    final InventoryIndex index;
+    // Canonical ids the box is filled with, set before `begin`
+    final int[] notes = new int[FillPlan.SLOTS];
+    private int mappings = 0;
+
+    // Queued clicks in handler slot ids
+    private final int[] slots = new int[CAPACITY];
+    private final int[] buttons = new int[CAPACITY];
+    private final int[] actions = new int[CAPACITY];
+    private int size = 0;
+    private int position = 0;
+    private int revision = 0;
+    // Once everything is sent, the handler has to stay on one revision until this time to count as settled
+    private long settle = 0;
+    // Replaced when the config is loaded, so changed limits apply from the next tick
+    volatile ClickBudget budget = null;
+
+    // Repair passes and clicks sent for the current box
+    int repairs = 0;
+    int clicks = 0;
+
+    BoxFiller(int inventory) {
+        this.planner = new PlacementPlanner(FillPlan.SLOTS, inventory);
+        this.index = new InventoryIndex(inventory);
+    }
+
+    void reset(int mappings) {
+        this.mappings = mappings;
+        index.reset(mappings);
+    }
+
+    // Plans the box against the inventory and queues its clicks
+    void begin(FillHandler handler) {
+        repairs = 0;
+        clicks = 0;
+        clear();
+        planner.begin(mappings);
+        for (int slot = 0; slot < FillPlan.SLOTS; slot++) planner.require(slot, notes[slot]);
+        schedule(handler);
+        start(handler);
+    }
+
+    // Compares the box with the plan and queues clicks for the slots that differ, returns false when it matches
+    boolean repair(FillHandler handler, int limit) {
+        planner.begin(mappings);
+        clear();
+        int wrong = 0;
+        int empty = 0;
+
+        // A dropped put back leaves the stack on the cursor
+        boolean holding = handler.holding();
+        if (holding) add(handler.inventorySlot(freeSlot(handler)), 0, FillHandler.PICKUP);
+        for (int slot = 0; slot < FillPlan.SLOTS; slot++) {
+            int count = handler.boxCount(slot);
+            if (count == 0) {
+                planner.require(slot, notes[slot]);
+                empty++;
+            } else if (count != 1 || handler.boxItem(slot) != notes[slot]) {
+                add(handler.boxSlot(slot), 0, FillHandler.QUICK_MOVE);
+                wrong++;
+            }
+        }
+        if (!holding && wrong == 0 && empty == 0) return false;
+
+        if (++repairs > limit)
+            throw new IllegalStateException("Box still doesn't match after %d repairs, empty it and try again".formatted(limit));
+        LOGGER.warn("Repairing box: {} wrong, {} empty slots", wrong, empty);
+
+        // Clearing moves items around the inventory, so empty slots are filled on the next pass
+        if (holding || wrong > 0) index.dirty = true;
+        else schedule(handler);
+        start(handler);
+        return true;
+    }
+
+    // Sends the next clicks within the budget. Returns true once everything is sent and the server had a chance to reject it
+    boolean tick(FillHandler handler, long now, long roundTrip) {
+        // The client only moves to a new revision when the server overrides its predictions
+        boolean corrected = handler.revision() != revision;
+        revision = handler.revision();
+
+        ClickBudget budget = this.budget;
+        int sent = 0;
+        for (int allowed = budget.allowance(); position < size && sent < allowed; position++, sent++)
+            handler.click(slots[position], buttons[position], actions[position]);
+        clicks += sent;
+        budget.update(now, roundTrip, sent, corrected);
+
+        if (position < size) return false;
+        // Wait a round trip past the last click or correction
+        if (sent > 0 || corrected || settle == 0) settle = now + roundTrip;
+        if (now < settle) return false;
+        clear();
+        return true;
+    }
+
+    // Drops the remaining clicks, returns whether all of them were already sent
+    boolean abort() {
+        boolean sent = position >= size;
+        clear();
+        return sent;
+    }
+
+    private void start(FillHandler handler) {
+        revision = handler.revision();
+        settle = 0;
+    }
+
+    private void clear() {
+        size = 0;
+        position = 0;
+    }
+
+    private void schedule(FillHandler handler) {
+        verify(handler);
+        planner.plan();
+        for (int i = 0; i < planner.clicks; i++) {
+            int slot = planner.slot[i];
+            int id = slot < FillPlan.SLOTS ? handler.boxSlot(slot) : handler.inventorySlot(slot - FillPlan.SLOTS);
+            add(id, planner.button[i], planner.action[i]);
+        }
+    }
+
+    private void verify(FillHandler handler) {
+        handler.sync(index);
+        for (int id = 0; id < planner.ids(); id++) {
+            if (!planner.required(id)) continue;
+            for (long slots = index.slots(id); slots != 0; slots &= slots - 1) {
+                int i = Long.numberOfTrailingZeros(slots);
+                planner.stack(i, index.count(i), id);
+            }
+        }
+
+        boolean missing = false;
+        for (int id = 0; id < planner.ids(); id++)
+            if (planner.missing(id) > 0) missing = true;
+        if (!missing) return;
+
+        // Compose an error message containing all remaining items
+        List<String> lines = new ArrayList<>();
+        for (int id = 0; id < planner.ids(); id++)
+            if (planner.missing(id) > 0)
+                lines.add("- %s: %d".formatted(handler.name(id), planner.missing(id)));
+        throw new IllegalStateException("Missing items:\n%s".formatted(String.join(",\n", lines)));
+    }
+
+    private int freeSlot(FillHandler handler) {
+        for (int i = 0; i < index.size; i++)
+            if (handler.isEmpty(i)) return i;
+        throw new IllegalStateException("No free inventory slot to put the held stack into");
+    }
+
+    private void add(int slot, int button, int action) {
+        slots[size] = slot;
+        buttons[size] = button;
+        actions[size++] = action;
+    }
+}
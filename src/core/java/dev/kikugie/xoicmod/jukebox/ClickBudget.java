@@ -0,0 +1,36 @@
+package dev.kikugie.xoicmod.jukebox;
+
+// Clicks allowed per tick, grown by one every round trip without corrections and halved when the server corrects us
+final class ClickBudget {
+    private final int min;
+    private final int max;
+    private double budget;
+    // End of the current probe window and whether any clicks were sent during it
+    private long window = 0;
+    private boolean active = false;
+
+    ClickBudget(int initial, int min, int max) {
+        this.min = Math.max(1, min);
+        this.max = Math.max(this.min, max);
+        this.budget = Math.min(this.max, Math.max(this.min, initial));
+    }
+
+    int allowance() {
+        return (int) budget;
+    }
+
+    void update(long now, long roundTrip, int sent, boolean corrected) {
+        if (corrected) {
+            budget = Math.max(min, budget / 2);
+            window = now + roundTrip;
+            active = false;
+            return;
+        }
+        if (sent > 0) active = true;
+        if (now < window) return;
+        // Only probe higher when the budget was actually used, idle ticks say nothing about the server
+        if (active) budget = Math.min(max, budget + 1);
+        window = now + roundTrip;
+        active = false;
+    }
+}
@@ -0,0 +1,33 @@
+package dev.kikugie.xoicmod.jukebox;
+
+// Screen a box is filled through, in game or simulated. Box positions are 0..26, inventory indexes follow the
+// player inventory with the hotbar first, and items are canonical note ids
+interface FillHandler {
+    int PICKUP = PlacementPlanner.PICKUP;
+    int SWAP = PlacementPlanner.SWAP;
+    int QUICK_MOVE = 2;
+
+    // Slot ids the clicks are sent to
+    int boxSlot(int position);
+
+    int inventorySlot(int index);
+
+    // Id of the stack in a box position, -1 for unmapped items. Only read for positions that aren't empty
+    int boxItem(int position);
+
+    int boxCount(int position);
+
+    boolean isEmpty(int index);
+
+    boolean holding();
+
+    // Brings the index up to date with the player inventory
+    void sync(InventoryIndex index);
+
+    // Bumped whenever the server overrides the client's contents
+    int revision();
+
+    void click(int slot, int button, int action);
+
+    String name(int id);
+}
@@ -0,0 +1,169 @@
+package dev.kikugie.xoicmod.jukebox;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+// Every shulker box of the song from the starting position, compiled once when the song is loaded.
+// Boxes after the last note of a track are left out, so silent tracks take no boxes at all
+public final class FillPlan {
+    public static final int SLOTS = 27;
+
+    final int boxes;
+    final int mappings;
+    // Mapping index (note + 1) for each slot of each box
+    final byte[] notes;
+    // Running count of every mapping over the boxes, [box * mappings + id] counts the boxes before `box`
+    final int[] totals;
+    // Position before each box, the entry at [boxes] is the position after the last one
+    final byte[] tracks;
+    final short[] offsets;
+
+    private FillPlan(int boxes, int mappings) {
+        this.boxes = boxes;
+        this.mappings = mappings;
+        this.notes = new byte[boxes * SLOTS];
+        this.totals = new int[(boxes + 1) * mappings];
+        this.tracks = new byte[boxes + 1];
+        this.offsets = new short[boxes + 1];
+    }
+
+    public static FillPlan compile(TrackStorage[] storage, JukeboxSong.State start, int mappings) throws Exception {
+        JukeboxLayout layout = JukeboxLayout.active();
+        if (!layout.isStart(start.offset()))
+            throw new IllegalArgumentException("No shulker box starts at offset %d in this layout".formatted(start.offset()));
+        short trackStart = layout.start();
+        int first = start.track();
+        int count = Math.max(0, storage.length - first);
+
+        // Count boxes per track first, so tracks can be filled independently
+        int[] bases = new int[count + 1];
+        for (int i = 0; i < count; i++)
+            bases[i + 1] = bases[i] + boxes(layout, storage[first + i], i == 0 ? start.offset() : trackStart);
+
+        FillPlan plan = new FillPlan(bases[count], mappings);
+        List<Callable<Void>> tasks = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int track = first + i;
+            int base = bases[i];
+            int boxes = bases[i + 1] - base;
+            short offset = i == 0 ? start.offset() : trackStart;
+            if (boxes == 0) continue;
+            tasks.add(() -> {
+                plan.fill(layout, storage[track], track, offset, base, boxes, mappings);
+                return null;
+            });
+        }
+        for (Future<Void> result : JukeboxWorkers.POOL.invokeAll(tasks)) {
+            try {
+                result.get();
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception cause ? cause : e;
+            }
+        }
+
+        // Position after the last box, which is also where an empty plan stays
+        plan.tracks[plan.boxes] = (byte) (count == 0 ? first : storage.length);
+        plan.offsets[plan.boxes] = count == 0 ? start.offset() : trackStart;
+        plan.countNotes();
+        return plan;
+    }
+
+    // Boxes from the given offset up to the last one holding a note. Earlier silent boxes stay,
+    // the design reads boxes in order and leaving one out would move every note after it
+    private static int boxes(JukeboxLayout layout, TrackStorage storage, int offset) {
+        if (storage.notes() == 0) return 0;
+        int length = storage.length();
+        int boxes = 0;
+        int used = 0;
+        do {
+            boxes++;
+            if (hasNote(layout, storage, offset)) used = boxes;
+            offset = layout.next(offset);
+        } while (offset < length);
+        return used;
+    }
+
+    private static boolean hasNote(JukeboxLayout layout, TrackStorage storage, int offset) {
+        int length = storage.length();
+        int group = layout.groupStart(offset);
+        int row = layout.starts[offset - group] * layout.slots;
+        for (int slot = 0; slot < layout.slots; slot++) {
+            int position = group + layout.positions[row + slot];
+            if (position < length && storage.get(position) != -1) return true;
+        }
+        return false;
+    }
+
+    private void countNotes() {
+        for (int box = 0; box < boxes; box++) {
+            int to = (box + 1) * mappings;
+            System.arraycopy(totals, box * mappings, totals, to, mappings);
+            for (int slot = 0, index = box * SLOTS; slot < SLOTS; slot++, index++) totals[to + notes[index]]++;
+        }
+    }
+
+    // Slots the layout doesn't read get the first mapping, like positions past the song end
+    private void fill(JukeboxLayout layout, TrackStorage storage, int track, short start, int base, int count, int mappings) {
+        int length = storage.length();
+        int offset = start;
+        for (int box = base; box < base + count; box++) {
+            tracks[box] = (byte) track;
+            offsets[box] = (short) offset;
+            int index = box * SLOTS;
+            int group = layout.groupStart(offset);
+            int row = layout.starts[offset - group] * layout.slots;
+            for (int slot = 0; slot < layout.slots; slot++) {
+                int position = group + layout.positions[row + slot];
+                int note = position < length ? storage.get(position) + 1 : 0;
+                if (note < 0 || note >= mappings)
+                    throw new IllegalStateException("Invalid note id %d at [%d %d]".formatted(note, track, position));
+                notes[index + slot] = (byte) note;
+            }
+            offset = layout.next(offset);
+        }
+    }
+
+    public int boxes() {
+        return boxes;
+    }
+
+    public byte track(int box) {
+        return tracks[box];
+    }
+
+    public short offset(int box) {
+        return offsets[box];
+    }
+
+    public int note(int box, int slot) {
+        return notes[box * SLOTS + slot];
+    }
+
+    // Adds how many of each mapping the boxes from `from` up to `to` take to `counts`
+    public void count(int from, int to, int[] counts) {
+        int start = from * mappings;
+        int end = to * mappings;
+        for (int id = 0; id < mappings; id++) counts[id] += totals[end + id] - totals[start + id];
+    }
+
+    // Box after the last one of the track the given box is on. Tracks are in order, so this is a binary search
+    public int trackEnd(int box) {
+        byte track = tracks[box];
+        int low = box + 1;
+        int high = boxes;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (tracks[middle] == track) low = middle + 1;
+            else high = middle;
+        }
+        return low;
+    }
+
+    // Whether the box is the last one of its track
+    public boolean advances(int box) {
+        return tracks[box + 1] != tracks[box];
+    }
+}
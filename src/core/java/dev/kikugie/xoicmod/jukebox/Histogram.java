@@ -0,0 +1,73 @@
+package dev.kikugie.xoicmod.jukebox;
+
+import java.util.Arrays;
+
+// Log-linear histogram of non-negative values: 16 linear buckets per power of two, so percentiles are within ~6%.
+// Fixed size and allocation-free when recording
+public final class Histogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB = 1 << SUB_BITS;
+    private final long[] counts = new long[(Long.SIZE - SUB_BITS + 1) * SUB];
+    private long total = 0;
+    private long sum = 0;
+    private long max = 0;
+
+    public void record(long value) {
+        if (value < 0) value = 0;
+        counts[index(value)]++;
+        total++;
+        sum += value;
+        max = Math.max(max, value);
+    }
+
+    public void reset() {
+        Arrays.fill(counts, 0);
+        total = 0;
+        sum = 0;
+        max = 0;
+    }
+
+    public long count() {
+        return total;
+    }
+
+    public long sum() {
+        return sum;
+    }
+
+    public long max() {
+        return max;
+    }
+
+    public double mean() {
+        return total == 0 ? 0 : (double) sum / total;
+    }
+
+    // Middle of the bucket holding the value at the given fraction of recorded values
+    public long percentile(double fraction) {
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) return Math.min(max, lowest(i) + (width(i) - 1) / 2);
+        }
+        return max;
+    }
+
+    static int index(long value) {
+        if (value < SUB) return (int) value;
+        int shift = Long.SIZE - 1 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return (shift + 1) * SUB + (int) ((value >>> shift) - SUB);
+    }
+
+    static long lowest(int index) {
+        if (index < SUB) return index;
+        int shift = index / SUB - 1;
+        return (long) (SUB + index % SUB) << shift;
+    }
+
+    private static long width(int index) {
+        return index < SUB ? 1 : 1L << (index / SUB - 1);
+    }
+}
@@ -0,0 +1,68 @@
+package dev.kikugie.xoicmod.jukebox;
+
+import java.util.Arrays;
+
+// Tracks where the mapped items are in the player inventory, keyed by canonical note id.
+// Kept up to date slot by slot, so lookups don't need to touch the inventory
+final class InventoryIndex {
+    final int size;
+    private final int[] ids;
+    private final int[] counts;
+    private int[] totals = new int[0];
+    // Bit per inventory index holding the id, so the index can't exceed 64 slots
+    private long[] slots = new long[0];
+    boolean dirty = true;
+
+    InventoryIndex(int size) {
+        if (size > Long.SIZE) throw new IllegalArgumentException("Can't index %d slots".formatted(size));
+        this.size = size;
+        this.ids = new int[size];
+        this.counts = new int[size];
+        Arrays.fill(ids, -1);
+    }
+
+    void reset(int mappings) {
+        totals = new int[mappings];
+        slots = new long[mappings];
+        Arrays.fill(ids, -1);
+        Arrays.fill(counts, 0);
+        dirty = true;
+    }
+
+    // Negative ids mark empty or unmapped stacks
+    void set(int index, int id, int count) {
+        int previous = ids[index];
+        if (previous >= 0) {
+            totals[previous] -= counts[index];
+            slots[previous] &= ~(1L << index);
+        }
+        if (id < 0 || id >= totals.length || count <= 0) {
+            ids[index] = -1;
+            counts[index] = 0;
+            return;
+        }
+        ids[index] = id;
+        counts[index] = count;
+        totals[id] += count;
+        slots[id] |= 1L << index;
+    }
+
+    int count(int index) {
+        return counts[index];
+    }
+
+    int total(int id) {
+        return totals[id];
+    }
+
+    long slots(int id) {
+        return slots[id];
+    }
+
+    // Whether there are at least `required[id]` items of every id
+    boolean covers(int[] required) {
+        for (int id = 0; id < required.length; id++)
+            if (required[id] > totals[id]) return false;
+        return true;
+    }
+}
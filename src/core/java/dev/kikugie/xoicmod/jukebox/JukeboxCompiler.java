@@ -0,0 +1,113 @@
+package dev.kikugie.xoicmod.jukebox;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+// Compiles a folder of .nbs files into .jukebox files outside the game, which /jukebox load reads without parsing.
+// Usage: <input dir> <output dir> [--codec name] [--mappings count] [--threads count] [--pack true|false] [--units count]
+public class JukeboxCompiler {
+    // Size of the default mappings list
+    private static final int MAPPINGS = 26;
+
+    record Result(Path file, int boxes, int tracks, int layers, int notes, int droppedLayers, int droppedKeys, int droppedTicks, int bytes, Exception error) {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: JukeboxCompiler <input dir> <output dir> [--codec name] [--mappings count] [--threads count] [--pack true|false] [--units count]");
+            System.exit(2);
+        }
+        Path input = Path.of(args[0]);
+        Path output = Path.of(args[1]);
+        NoteCodec codec = NoteCodecs.PACKED_DEFLATE;
+        int mappings = MAPPINGS;
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean pack = false;
+        int units = 1;
+        for (int i = 2; i + 1 < args.length; i += 2) switch (args[i]) {
+            case "--codec" -> codec = NoteCodecs.get(args[i + 1]);
+            case "--mappings" -> mappings = Integer.parseInt(args[i + 1]);
+            case "--threads" -> threads = Math.max(1, Integer.parseInt(args[i + 1]));
+            case "--pack" -> pack = Boolean.parseBoolean(args[i + 1]);
+            case "--units" -> units = Integer.parseInt(args[i + 1]);
+            default -> throw new IllegalArgumentException("Unknown option %s".formatted(args[i]));
+        }
+
+        List<Path> files;
+        try (Stream<Path> stream = Files.walk(input)) {
+            files = stream.filter(it -> Files.isRegularFile(it) && it.toString().endsWith(".nbs")).sorted().toList();
+        }
+
+        long start = System.nanoTime();
+        List<Result> results = compile(input, output, files, codec, mappings, threads, pack, units);
+        long elapsed = (System.nanoTime() - start) / 1_000_000;
+
+        int failed = 0;
+        long boxes = 0, notes = 0, layers = 0, keys = 0, ticks = 0, bytes = 0;
+        for (Result result : results) {
+            if (result.error != null) {
+                failed++;
+                System.err.printf("FAIL %s: %s%n", input.relativize(result.file), result.error.getMessage());
+                continue;
+            }
+            System.out.printf("OK   %s: %d boxes, %d layers on %d tracks, %d notes, %d dropped, %d bytes%n",
+                input.relativize(result.file), result.boxes, result.layers, result.tracks, result.notes,
+                result.droppedLayers + result.droppedKeys + result.droppedTicks, result.bytes);
+            boxes += result.boxes;
+            notes += result.notes;
+            layers += result.droppedLayers;
+            keys += result.droppedKeys;
+            ticks += result.droppedTicks;
+            bytes += result.bytes;
+        }
+
+        System.out.printf("%nCompiled %d/%d songs in %d ms with %d threads%n", results.size() - failed, results.size(), elapsed, threads);
+        System.out.printf("Boxes: %d, notes: %d, bytes: %d%n", boxes, notes, bytes);
+        System.out.printf("Dropped notes: %d that didn't fit in %d tracks, %d with keys outside the mappings, %d past the song end%n",
+            layers, units * TrackReader.TRACKS, keys, ticks);
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    static List<Result> compile(Path input, Path output, List<Path> files, NoteCodec codec, int mappings, int threads, boolean pack, int units) throws Exception {
+        List<Callable<Result>> tasks = new ArrayList<>(files.size());
+        for (Path file : files) tasks.add(() -> compile(file, target(input, output, file), codec, mappings, pack, units));
+
+        // Files are spread over a work-stealing pool, each one still splits its plan and encoding over the shared workers
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            List<Result> results = new ArrayList<>(files.size());
+            for (Future<Result> future : pool.invokeAll(tasks)) results.add(future.get());
+            return results;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // Errors are kept per file, so one broken song doesn't stop the batch
+    static Result compile(Path file, Path target, NoteCodec codec, int mappings, boolean pack, int units) {
+        try {
+            TrackReader reader = new TrackReader(mappings - 1, pack, units);
+            TrackStorage[] tracks = reader.readTracks(file);
+            JukeboxSong.State start = new JukeboxSong.State((byte) 0, JukeboxLayout.active().start());
+            FillPlan plan = FillPlan.compile(tracks, start, mappings);
+            byte[] data = JukeboxFormat.encode(tracks, start, false, codec);
+
+            Files.createDirectories(target.getParent());
+            Files.write(target, data);
+            return new Result(file, plan.boxes(), tracks.length, reader.layers, reader.notes, reader.droppedLayers, reader.droppedKeys, reader.droppedTicks, data.length, null);
+        } catch (Exception e) {
+            return new Result(file, 0, 0, 0, 0, 0, 0, 0, 0, e);
+        }
+    }
+
+    private static Path target(Path input, Path output, Path file) {
+        String name = input.relativize(file).toString();
+        return output.resolve(name.substring(0, name.length() - ".nbs".length()) + ".jukebox");
+    }
+}
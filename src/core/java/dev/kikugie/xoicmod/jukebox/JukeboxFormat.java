@@ -0,0 +1,212 @@
+package dev.kikugie.xoicmod.jukebox;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+
+/*
+Layout of current.jukebox, little-endian:
+  0  paused (1), track (1), offset (2) - shared with the legacy format and the journal
+  4  magic "XJBX"
+  8  version (1), codec id from NoteCodecs (1), track count (1), reserved (1)
+  12 track length in ticks (4)
+  16 block length in ticks (4)
+  20 CRC32 of bytes 4-19 and the index (4)
+  24 index: offset (4), compressed length (4), CRC32 of the decoded block (4) for every block of every track
+  .. compressed blocks
+Legacy files have a single deflate stream of all tracks right after the state bytes.
+*/
+public class JukeboxFormat {
+    static final int MAGIC = 'X' | 'J' << 8 | 'B' << 16 | 'X' << 24;
+    static final int VERSION = 2;
+    static final int HEADER = 24;
+    static final int ENTRY = 12;
+    // A whole number of default layout groups, so resuming never needs the block before the current one
+    static final int BLOCK = 108 * 64;
+
+    public record Decoded(byte[][] notes, JukeboxSong.State state, boolean paused, int encoded) {
+    }
+
+    public record Header(JukeboxSong.State state, boolean paused) {
+    }
+
+    private record Chunk(byte[] data, int checksum) {
+    }
+
+    public static byte[] encode(TrackStorage[] notes, JukeboxSong.State state, boolean paused, NoteCodec preferred) throws Exception {
+        int tracks = notes.length;
+        int length = notes[0].length();
+
+        // Codecs with a limited note range fall back to plain deflate
+        Chunk[] chunks = compress(notes, preferred);
+        NoteCodec selected = preferred;
+        if (chunks == null) {
+            selected = NoteCodecs.DEFLATE;
+            chunks = compress(notes, selected);
+        }
+
+        int total = HEADER + chunks.length * ENTRY;
+        for (Chunk chunk : chunks) total += chunk.data.length;
+
+        ByteBuffer buffer = ByteBuffer.allocate(total).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put((byte) (paused ? 1 : 0));
+        buffer.put(state.track());
+        buffer.putShort(state.offset());
+        buffer.putInt(MAGIC);
+        buffer.put((byte) VERSION);
+        buffer.put((byte) selected.id());
+        buffer.put((byte) tracks);
+        buffer.put((byte) 0);
+        buffer.putInt(length);
+        buffer.putInt(BLOCK);
+        buffer.putInt(0);
+
+        int position = HEADER + chunks.length * ENTRY;
+        for (int i = 0; i < chunks.length; i++) {
+            buffer.putInt(position);
+            buffer.putInt(chunks[i].data.length);
+            buffer.putInt(chunks[i].checksum);
+            position += chunks[i].data.length;
+        }
+        for (Chunk chunk : chunks) buffer.put(chunk.data);
+
+        byte[] data = buffer.array();
+        buffer.putInt(20, headerChecksum(data, chunks.length));
+        return data;
+    }
+
+    // The position bytes are outside the header checksum, so they can be rewritten in place
+    public static void setState(byte[] data, JukeboxSong.State state, boolean paused) {
+        ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(0, (byte) (paused ? 1 : 0));
+        buffer.put(1, state.track());
+        buffer.putShort(2, state.offset());
+    }
+
+    // Reads the position from the first 4 bytes, which is all that's needed before the notes are decoded
+    public static Header header(byte[] data) {
+        ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        return new Header(new JukeboxSong.State(buffer.get(1), buffer.getShort(2)), buffer.get(0) == 1);
+    }
+
+    // Decodes only blocks at or after the saved position, earlier notes are left silent
+    public static Decoded decode(byte[] data) throws Exception {
+        ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        Header header = header(data);
+        boolean paused = header.paused();
+        JukeboxSong.State state = header.state();
+        byte track = state.track();
+        short offset = state.offset();
+        if (data.length < HEADER || buffer.getInt(4) != MAGIC) return decodeLegacy(data, state, paused);
+
+        int version = buffer.get(8);
+        NoteCodec codec = NoteCodecs.get(buffer.get(9) & 0xFF);
+        int tracks = buffer.get(10) & 0xFF;
+        int length = buffer.getInt(12);
+        int block = buffer.getInt(16);
+        if (version != VERSION) throw new IllegalStateException("Unsupported song format version %d".formatted(version));
+        if (length < 0 || block <= 0) throw new IllegalStateException("Invalid song length %d".formatted(length));
+
+        int blocks = (length + block - 1) / block;
+        if (data.length < HEADER + tracks * blocks * ENTRY || buffer.getInt(20) != headerChecksum(data, tracks * blocks))
+            throw new IllegalStateException("Song header is corrupted");
+
+        byte[][] notes = new byte[tracks][length];
+        int first = JukeboxLayout.active().groupStart(offset);
+        int encoded = 0;
+        for (int t = 0; t < tracks; t++) {
+            for (int b = 0; b < blocks; b++) {
+                int from = b * block;
+                int to = Math.min(length, from + block);
+                if (t < track || t == track && to <= first) {
+                    Arrays.fill(notes[t], from, to, (byte) -1);
+                    continue;
+                }
+
+                int entry = HEADER + (t * blocks + b) * ENTRY;
+                int position = buffer.getInt(entry);
+                int size = buffer.getInt(entry + 4);
+                codec.decode(data, position, size, notes[t], from, to - from);
+                if (checksum(notes[t], from, to - from) != buffer.getInt(entry + 8))
+                    throw new IllegalStateException("Song block %d of track %d is corrupted".formatted(b, t));
+                encoded += size;
+            }
+        }
+        return new Decoded(notes, state, paused, encoded);
+    }
+
+    private static Decoded decodeLegacy(byte[] data, JukeboxSong.State state, boolean paused) throws Exception {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, 4, data.length - 4);
+            byte[] temp = new byte[1024];
+            while (!inflater.finished()) {
+                int count = inflater.inflate(temp);
+                if (count == 0 && inflater.needsInput()) throw new IllegalStateException("Song data is truncated");
+                stream.write(temp, 0, count);
+            }
+        } finally {
+            inflater.end();
+        }
+
+        int length = stream.size();
+        // Legacy songs always had a single jukebox unit
+        if (length % TrackReader.TRACKS != 0) throw new IllegalStateException("Invalid song length %d".formatted(length));
+        byte[] flattened = stream.toByteArray();
+        byte[][] notes = new byte[TrackReader.TRACKS][length / TrackReader.TRACKS];
+        for (int i = 0; i < notes.length; i++)
+            System.arraycopy(flattened, i * notes[0].length, notes[i], 0, notes[i].length);
+        return new Decoded(notes, state, paused, data.length - 4);
+    }
+
+    // Blocks are independent, so they are compressed in parallel. Returns null if the codec can't encode a block
+    private static Chunk[] compress(TrackStorage[] notes, NoteCodec codec) throws Exception {
+        int length = notes[0].length();
+        int blocks = blockCount(length);
+        List<Callable<Chunk>> tasks = new ArrayList<>(notes.length * blocks);
+        for (TrackStorage track : notes)
+            for (int block = 0; block < blocks; block++) {
+                int from = block * BLOCK;
+                int size = Math.min(length, from + BLOCK) - from;
+                tasks.add(() -> {
+                    byte[] raw = new byte[size];
+                    track.copyTo(from, raw, 0, size);
+                    if (!codec.supports(raw, 0, size)) return null;
+                    return new Chunk(codec.encode(raw, 0, size), checksum(raw, 0, size));
+                });
+            }
+
+        List<Future<Chunk>> results = JukeboxWorkers.POOL.invokeAll(tasks);
+        Chunk[] chunks = new Chunk[results.size()];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = results.get(i).get();
+            if (chunks[i] == null) return null;
+        }
+        return chunks;
+    }
+
+    private static int blockCount(int length) {
+        return (length + BLOCK - 1) / BLOCK;
+    }
+
+    private static int checksum(byte[] data, int from, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, from, length);
+        return (int) crc.getValue();
+    }
+
+    private static int headerChecksum(byte[] data, int entries) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 4, 16);
+        crc.update(data, HEADER, entries * ENTRY);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,103 @@
+package dev.kikugie.xoicmod.jukebox;
+
+import java.util.Arrays;
+
+// Order in which a jukebox design reads notes from shulker boxes, compiled into lookup tables.
+// Track positions are split into groups of boxes * slots notes. Box lanes interleave with the given stride,
+// boxes past the stride continue after the lanes before them. The default design reads 4 boxes of 27 notes
+// every 4th tick, filled in the order [4, 2, 3, 1]
+public final class JukeboxLayout {
+    public static final JukeboxLayout DEFAULT = new JukeboxLayout(FillPlan.SLOTS, 4, 4, new int[]{4, 2, 3, 1});
+    private static volatile JukeboxLayout active = DEFAULT;
+
+    final int slots;
+    final int boxes;
+    final int stride;
+    final int group;
+    // Lane of each box in fill order, starting from 0
+    final int[] order;
+    // Position in the group for each slot of each box in fill order
+    final int[] positions;
+    // Fill order index of the box starting at each position of the group, -1 where no box starts
+    final int[] starts;
+
+    public JukeboxLayout(int slots, int boxes, int stride, int[] order) {
+        if (slots < 1 || slots > FillPlan.SLOTS)
+            throw new IllegalArgumentException("Slots per box must be between 1 and %d, got %d".formatted(FillPlan.SLOTS, slots));
+        if (stride < 1 || boxes < 1 || boxes % stride != 0)
+            throw new IllegalArgumentException("Boxes per group (%d) must be a multiple of the stride (%d)".formatted(boxes, stride));
+        if (order.length != boxes)
+            throw new IllegalArgumentException("Order must list all %d boxes, got %s".formatted(boxes, Arrays.toString(order)));
+        if ((long) boxes * slots > Short.MAX_VALUE)
+            throw new IllegalArgumentException("Group of %d boxes is too large".formatted(boxes));
+
+        this.slots = slots;
+        this.boxes = boxes;
+        this.stride = stride;
+        this.group = boxes * slots;
+        this.order = new int[boxes];
+        this.positions = new int[boxes * slots];
+        this.starts = new int[group];
+        Arrays.fill(starts, -1);
+
+        boolean[] seen = new boolean[boxes];
+        for (int index = 0; index < boxes; index++) {
+            int lane = order[index] - 1;
+            if (lane < 0 || lane >= boxes || seen[lane])
+                throw new IllegalArgumentException("Order %s is not a permutation of 1..%d".formatted(Arrays.toString(order), boxes));
+            seen[lane] = true;
+            this.order[index] = lane;
+            for (int slot = 0; slot < slots; slot++)
+                positions[index * slots + slot] = lane % stride + (slot + lane / stride * slots) * stride;
+            starts[positions[index * slots]] = index;
+        }
+    }
+
+    // Order is written 1-based and comma separated, the way builds usually describe it
+    public static JukeboxLayout parse(int slots, int boxes, int stride, String order) {
+        String[] parts = order.split(",");
+        int[] lanes = new int[parts.length];
+        try {
+            for (int i = 0; i < parts.length; i++) lanes[i] = Integer.parseInt(parts[i].trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid box order %s".formatted(order));
+        }
+        return new JukeboxLayout(slots, boxes, stride, lanes);
+    }
+
+    public static JukeboxLayout active() {
+        return active;
+    }
+
+    // Songs compiled afterwards use the new layout
+    public static void setActive(JukeboxLayout layout) {
+        active = layout;
+    }
+
+    // Offset of the first box of a track
+    public short start() {
+        return (short) positions[0];
+    }
+
+    public boolean isStart(int offset) {
+        return offset >= 0 && starts[offset % group] != -1;
+    }
+
+    // Offset of the box filled after the one at the given offset
+    public int next(int offset) {
+        int base = offset - offset % group;
+        int index = starts[offset % group] + 1;
+        return index < boxes ? base + positions[index * slots] : base + group + positions[0];
+    }
+
+    // Track position read from the slot of the box at the given offset, -1 for slots the design doesn't read
+    public int position(int offset, int slot) {
+        if (slot >= slots) return -1;
+        return offset - offset % group + positions[starts[offset % group] * slots + slot];
+    }
+
+    // Lowest position read by the box at the given offset or any box after it
+    public int groupStart(int offset) {
+        return offset - offset % group;
+    }
+}
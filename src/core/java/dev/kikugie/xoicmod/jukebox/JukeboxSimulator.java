@@ -0,0 +1,346 @@
+package dev.kikugie.xoicmod.jukebox;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+// Fills the boxes of a song against simulated handlers, without the game. Boxes go through the same BoxFiller as in game,
+// with its planner, click budget and repair passes. The server sees every click right away, drops some of them
+// and corrects the client a round trip later, like the vanilla screen handler sync.
+// With a trace from /jukebox trace, the inventory follows the recorded packets and every opened box is filled from it.
+// Usage: <song.nbs|song.jukebox> [--mappings count] [--latency ms] [--drop fraction] [--boxes count] [--open ms]
+//        [--restock ms] [--budget initial,min,max] [--repairs count] [--seed value] [--trace file]
+public class JukeboxSimulator implements FillHandler {
+    private static final long TICK = 50;
+
+    final int mappings;
+    final long latency;
+    final double drop;
+    final long open;
+    final long restock;
+    final int repairLimit;
+    private final Random random;
+
+    final SimulatedHandler client = new SimulatedHandler();
+    final SimulatedHandler server = new SimulatedHandler();
+    private final BoxFiller filler = new BoxFiller(SimulatedHandler.INVENTORY);
+    private final int[] needed;
+
+    // When the server's correction reaches the client, -1 if the two agree
+    private long resync = -1;
+    long now = 0;
+
+    final Histogram clicks = new Histogram();
+    final Histogram boxTime = new Histogram();
+    int boxes = 0;
+    int wrong = 0;
+    int failed = 0;
+    int repairs = 0;
+    int corrections = 0;
+    int dropped = 0;
+    int restocks = 0;
+
+    JukeboxSimulator(int mappings, long latency, double drop, long open, long restock, int[] budget, int repairLimit, long seed) {
+        this.mappings = mappings;
+        this.latency = latency;
+        this.drop = drop;
+        this.open = open;
+        this.restock = restock;
+        this.repairLimit = repairLimit;
+        this.random = new Random(seed);
+        this.needed = new int[mappings];
+        filler.budget = new ClickBudget(budget[0], budget[1], budget[2]);
+        filler.reset(mappings);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: JukeboxSimulator <song.nbs|song.jukebox> [--mappings count] [--latency ms] [--drop fraction] [--boxes count] [--open ms] [--restock ms] [--budget initial,min,max] [--repairs count] [--seed value] [--trace file]");
+            System.exit(2);
+        }
+        Path song = Path.of(args[0]);
+        int mappings = 26;
+        long latency = 100;
+        double drop = 0;
+        int limit = Integer.MAX_VALUE;
+        long open = 250;
+        long restock = 0;
+        int[] budget = {8, 1, 64};
+        int repairs = 3;
+        long seed = 1;
+        Path trace = null;
+        for (int i = 1; i + 1 < args.length; i += 2) switch (args[i]) {
+            case "--mappings" -> mappings = Integer.parseInt(args[i + 1]);
+            case "--latency" -> latency = Long.parseLong(args[i + 1]);
+            case "--drop" -> drop = Double.parseDouble(args[i + 1]);
+            case "--boxes" -> limit = Integer.parseInt(args[i + 1]);
+            case "--open" -> open = Long.parseLong(args[i + 1]);
+            case "--restock" -> restock = Long.parseLong(args[i + 1]);
+            case "--budget" -> budget = Arrays.stream(args[i + 1].split(",")).mapToInt(Integer::parseInt).toArray();
+            case "--repairs" -> repairs = Integer.parseInt(args[i + 1]);
+            case "--seed" -> seed = Long.parseLong(args[i + 1]);
+            case "--trace" -> trace = Path.of(args[i + 1]);
+            default -> throw new IllegalArgumentException("Unknown option %s".formatted(args[i]));
+        }
+        if (budget.length != 3) throw new IllegalArgumentException("Budget must be initial,min,max");
+
+        FillPlan plan = plan(song, mappings);
+        JukeboxSimulator simulator = new JukeboxSimulator(mappings, latency, drop, open, restock, budget, repairs, seed);
+        int count = Math.min(limit, plan.boxes());
+        if (trace == null) simulator.run(plan, count);
+        else simulator.replay(Files.readAllLines(trace, StandardCharsets.UTF_8), plan, count);
+        System.out.println(simulator.report());
+        System.exit(simulator.wrong == 0 && simulator.failed == 0 ? 0 : 1);
+    }
+
+    // Compiled songs start from their saved position, others from the start of the layout
+    static FillPlan plan(Path song, int mappings) throws Exception {
+        if (song.toString().endsWith(".jukebox")) {
+            JukeboxFormat.Decoded decoded = JukeboxFormat.decode(Files.readAllBytes(song));
+            TrackStorage[] tracks = new TrackStorage[decoded.notes().length];
+            for (int i = 0; i < tracks.length; i++) tracks[i] = TrackStorage.of(decoded.notes()[i]);
+            return FillPlan.compile(tracks, decoded.state(), mappings);
+        }
+        TrackStorage[] tracks = new TrackReader(mappings - 1, false, 1).readTracks(song);
+        return FillPlan.compile(tracks, new JukeboxSong.State((byte) 0, JukeboxLayout.active().start()), mappings);
+    }
+
+    // Every box is a fresh one, opened after walking to it and a round trip for the screen
+    void run(FillPlan plan, int count) {
+        for (int box = 0; box < count; box++) {
+            now += open + latency;
+            client.clearBox();
+            server.clearBox();
+            fill(plan, box, true);
+        }
+    }
+
+    /*
+    Trace lines, with stacks written as `id:count`, `?:count` for unmapped items or `-` for empty slots:
+      inventory <sync id> <stack of every slot>... <cursor stack>
+      slot <sync id> <slot> <stack>
+      open
+    Sync id 0 is the player screen, -1 the cursor and -2 an inventory index, anything else a shulker box screen.
+    */
+    void replay(List<String> trace, FillPlan plan, int count) {
+        int box = 0;
+        for (String line : trace) {
+            String[] parts = line.trim().split(" ");
+            switch (parts[0]) {
+                case "inventory" -> {
+                    int syncId = Integer.parseInt(parts[1]);
+                    for (int i = 2; i < parts.length - 1; i++) {
+                        int slot = slot(syncId, i - 2);
+                        if (slot >= 0) put(slot, parts[i]);
+                    }
+                    putCursor(parts[parts.length - 1]);
+                }
+                case "slot" -> {
+                    int syncId = Integer.parseInt(parts[1]);
+                    int slot = Integer.parseInt(parts[2]);
+                    if (syncId == -1) putCursor(parts[3]);
+                    else if (syncId == -2) {
+                        if (slot >= 0 && slot < SimulatedHandler.INVENTORY) put(SimulatedHandler.slotOf(slot), parts[3]);
+                    } else if ((slot = slot(syncId, slot)) >= 0) put(slot, parts[3]);
+                }
+                case "open" -> {
+                    if (box >= count) return;
+                    now += open + latency;
+                    fill(plan, box++, false);
+                }
+                default -> {
+                }
+            }
+        }
+    }
+
+    // Handler slot of a recorded slot id, -1 for slots the simulation doesn't have
+    private static int slot(int syncId, int slot) {
+        if (syncId != 0) return slot < SimulatedHandler.SIZE ? slot : -1;
+        // Player screen: crafting and armor first, then the main inventory and the hotbar
+        if (slot >= 9 && slot < 36) return SimulatedHandler.slotOf(slot);
+        if (slot >= 36 && slot < 45) return SimulatedHandler.slotOf(slot - 36);
+        return -1;
+    }
+
+    private void put(int slot, String stack) {
+        int[] parsed = parse(stack);
+        client.set(slot, parsed[0], parsed[1]);
+        server.set(slot, parsed[0], parsed[1]);
+    }
+
+    private void putCursor(String stack) {
+        int[] parsed = parse(stack);
+        client.setCursor(parsed[0], parsed[1]);
+        server.setCursor(parsed[0], parsed[1]);
+    }
+
+    private static int[] parse(String stack) {
+        if (stack.equals("-")) return new int[]{SimulatedHandler.EMPTY, 0};
+        int split = stack.indexOf(':');
+        String id = stack.substring(0, split);
+        return new int[]{id.equals("?") ? SimulatedHandler.UNMAPPED : Integer.parseInt(id), Integer.parseInt(stack.substring(split + 1))};
+    }
+
+    // Same steps as in game: plan against the inventory, send, wait for the server and repair.
+    // Replayed inventories are used as recorded, so missing items fail the box like in game
+    private void fill(FillPlan plan, int box, boolean restocking) {
+        long start = now;
+        try {
+            if (restocking && !hasItems(plan, box)) restock(plan, box);
+            for (int slot = 0; slot < FillPlan.SLOTS; slot++) filler.notes[slot] = plan.note(box, slot);
+            filler.begin(this);
+            do settle(); while (filler.repair(this, repairLimit));
+        } catch (IllegalStateException e) {
+            failed++;
+            filler.abort();
+        }
+        boxes++;
+        repairs += filler.repairs;
+        clicks.record(filler.clicks);
+        boxTime.record(now - start);
+
+        for (int slot = 0; slot < FillPlan.SLOTS; slot++)
+            if (server.items[slot] != plan.note(box, slot) || server.counts[slot] != 1) {
+                wrong++;
+                break;
+            }
+    }
+
+    // Ticks until the filler settles, the server's correction reaches the client a round trip after it diverged
+    private void settle() {
+        long roundTrip = Math.max(TICK, latency);
+        while (true) {
+            if (resync != -1 && now >= resync) {
+                client.copyFrom(server);
+                client.revision++;
+                resync = -1;
+                corrections++;
+            }
+            if (filler.tick(this, now, roundTrip)) return;
+            now += TICK;
+        }
+    }
+
+    @Override
+    public int boxSlot(int position) {
+        return position;
+    }
+
+    @Override
+    public int inventorySlot(int index) {
+        return SimulatedHandler.slotOf(index);
+    }
+
+    @Override
+    public int boxItem(int position) {
+        return client.items[position];
+    }
+
+    @Override
+    public int boxCount(int position) {
+        return client.counts[position];
+    }
+
+    @Override
+    public boolean isEmpty(int index) {
+        return client.isEmpty(SimulatedHandler.slotOf(index));
+    }
+
+    @Override
+    public boolean holding() {
+        return client.cursorItem != SimulatedHandler.EMPTY;
+    }
+
+    @Override
+    public void sync(InventoryIndex index) {
+        for (int i = 0; i < SimulatedHandler.INVENTORY; i++) {
+            int slot = SimulatedHandler.slotOf(i);
+            index.set(i, client.items[slot], client.counts[slot]);
+        }
+    }
+
+    @Override
+    public int revision() {
+        return client.revision;
+    }
+
+    @Override
+    public void click(int slot, int button, int action) {
+        client.click(slot, button, action);
+        if (drop > 0 && random.nextDouble() < drop) dropped++;
+        else server.click(slot, button, action);
+        if (resync == -1 && !client.matches(server)) resync = now + latency;
+    }
+
+    @Override
+    public String name(int id) {
+        return "#" + id;
+    }
+
+    private boolean hasItems(FillPlan plan, int box) {
+        sync(filler.index);
+        Arrays.fill(needed, 0);
+        for (int slot = 0; slot < FillPlan.SLOTS; slot++) needed[plan.note(box, slot)]++;
+        return filler.index.covers(needed);
+    }
+
+    // Empties the inventory and takes full stacks for as many of the next boxes as fit, in shuffled slots
+    private void restock(FillPlan plan, int box) {
+        Arrays.fill(needed, 0);
+        int[] next = new int[mappings];
+        for (int end = box; end < plan.boxes(); end++) {
+            System.arraycopy(needed, 0, next, 0, mappings);
+            for (int slot = 0; slot < FillPlan.SLOTS; slot++) next[plan.note(end, slot)]++;
+            if (end > box && stacks(next) > SimulatedHandler.INVENTORY) break;
+            System.arraycopy(next, 0, needed, 0, mappings);
+        }
+
+        int[] order = new int[SimulatedHandler.INVENTORY];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        for (int i = order.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = order[i];
+            order[i] = order[j];
+            order[j] = swap;
+        }
+
+        int used = 0;
+        for (int i = 0; i < SimulatedHandler.INVENTORY; i++) {
+            client.set(SimulatedHandler.slotOf(i), SimulatedHandler.EMPTY, 0);
+            server.set(SimulatedHandler.slotOf(i), SimulatedHandler.EMPTY, 0);
+        }
+        for (int id = 0; id < mappings; id++)
+            for (int left = needed[id]; left > 0; left -= SimulatedHandler.MAX_STACK) {
+                int slot = SimulatedHandler.slotOf(order[used++]);
+                client.set(slot, id, SimulatedHandler.MAX_STACK);
+                server.set(slot, id, SimulatedHandler.MAX_STACK);
+            }
+        client.setCursor(SimulatedHandler.EMPTY, 0);
+        server.setCursor(SimulatedHandler.EMPTY, 0);
+        now += restock;
+        restocks++;
+    }
+
+    private static int stacks(int[] counts) {
+        int stacks = 0;
+        for (int count : counts) stacks += (count + SimulatedHandler.MAX_STACK - 1) / SimulatedHandler.MAX_STACK;
+        return stacks;
+    }
+
+    String report() {
+        StringBuilder text = new StringBuilder();
+        double seconds = now / 1000.0;
+        text.append("Boxes: %d, %d with wrong contents, %d failed".formatted(boxes, wrong, failed));
+        text.append("\nClicks per box: mean %.1f, p50 %d, p99 %d".formatted(clicks.mean(), clicks.percentile(0.5), clicks.percentile(0.99)));
+        text.append("\nTime per box: p50 %d ms, p99 %d ms".formatted(boxTime.percentile(0.5), boxTime.percentile(0.99)));
+        text.append("\nSimulated %.1f s at %d ms latency: %.3f boxes/s, %.1f boxes/min".formatted(
+            seconds, latency, seconds == 0 ? 0 : boxes / seconds, seconds == 0 ? 0 : boxes * 60 / seconds));
+        text.append("\nDropped clicks: %d, corrections: %d, repair passes: %d, restocks: %d".formatted(dropped, corrections, repairs, restocks));
+        text.append("\nFinal contents: %s".formatted(wrong == 0 && failed == 0 ? "correct" : "%d boxes differ from the plan".formatted(wrong)));
+        return text.toString();
+    }
+}
@@ -0,0 +1,57 @@
+package dev.kikugie.xoicmod.jukebox;
+
+public class JukeboxSong {
+    // Mapping count the plan was validated against
+    final int mappings;
+    final TrackStorage[] tracks;
+    final FillPlan plan;
+
+    int box = 0;
+    int previous = 0;
+    boolean paused = false;
+
+    JukeboxSong(TrackStorage[] tracks, State state, boolean paused, int mappings) throws Exception {
+        this(tracks, state, mappings);
+        this.paused = paused;
+    }
+
+    JukeboxSong(TrackStorage[] tracks, State state, int mappings) throws Exception {
+        this.tracks = tracks;
+        this.mappings = mappings;
+        this.plan = FillPlan.compile(tracks, state, mappings);
+    }
+
+    public record State(byte track, short offset) {
+    }
+
+    public State state() {
+        return new State(track(), offset());
+    }
+
+    public byte track() {
+        return plan.track(box);
+    }
+
+    public short offset() {
+        return plan.offset(box);
+    }
+
+    public void backup() {
+        previous = box;
+    }
+
+    public void restore() {
+        box = previous;
+    }
+
+    public boolean hasNext() {
+        return box < plan.boxes();
+    }
+
+    // Returns the index of the box to fill in the plan
+    public int next() {
+        if (!hasNext()) throw new IllegalStateException("No more notes in the song");
+        backup();
+        return box++;
+    }
+}
@@ -0,0 +1,24 @@
+package dev.kikugie.xoicmod.jukebox;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class JukeboxWorkers {
+    private static final Logger LOGGER = LoggerFactory.getLogger(JukeboxWorkers.class);
+    private static final AtomicInteger COUNTER = new AtomicInteger();
+    // Work-stealing pool for file scanning and song processing, kept away from the common pool
+    static final ForkJoinPool POOL = new ForkJoinPool(
+        Math.max(1, Runtime.getRuntime().availableProcessors() - 1),
+        pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("Jukebox Worker #" + COUNTER.incrementAndGet());
+            return thread;
+        },
+        (thread, e) -> LOGGER.error("Unhandled exception in %s".formatted(thread.getName()), e),
+        false
+    );
+}
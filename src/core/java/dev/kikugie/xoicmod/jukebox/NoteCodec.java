@@ -0,0 +1,18 @@
+package dev.kikugie.xoicmod.jukebox;
+
+// Compresses a range of a track. Instances must not keep state between calls, so they can be shared across threads
+public interface NoteCodec {
+    // Stored in the song file header, must be unique and stable
+    int id();
+
+    String name();
+
+    default boolean supports(byte[] data, int from, int length) {
+        return true;
+    }
+
+    byte[] encode(byte[] data, int from, int length);
+
+    // Decodes exactly dstLength notes into dst, throwing on malformed input
+    void decode(byte[] src, int from, int length, byte[] dst, int dstFrom, int dstLength);
+}
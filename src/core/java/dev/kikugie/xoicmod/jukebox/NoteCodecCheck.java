@@ -0,0 +1,101 @@
+package dev.kikugie.xoicmod.jukebox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+// Round-trips silent, partly silent and dense blocks through every codec and through whole song files.
+// Silent blocks matter because every unit of tracks is padded with silent ones. Exits with 1 on any mismatch
+public class NoteCodecCheck {
+    private static final NoteCodec[] CODECS = {NoteCodecs.DEFLATE, NoteCodecs.PACKED, NoteCodecs.PACKED_DEFLATE};
+
+    public static void main(String[] args) throws Exception {
+        List<String> failures = new ArrayList<>();
+        List<byte[]> blocks = blocks();
+        for (NoteCodec codec : CODECS)
+            for (byte[] block : blocks) check(codec, block, failures);
+        for (NoteCodec codec : CODECS) checkFile(codec, failures);
+
+        for (String failure : failures) System.err.println("FAIL " + failure);
+        System.out.printf("Checked %d blocks with %d codecs, %d failures%n", blocks.size(), CODECS.length, failures.size());
+        System.exit(failures.isEmpty() ? 0 : 1);
+    }
+
+    static List<byte[]> blocks() {
+        List<byte[]> blocks = new ArrayList<>();
+        for (int length : new int[]{1, 2, 10, 100, JukeboxFormat.BLOCK}) blocks.add(silent(length));
+
+        byte[] first = silent(100);
+        first[0] = 3;
+        blocks.add(first);
+        byte[] last = silent(100);
+        last[99] = 24;
+        blocks.add(last);
+        // Gaps around the extended silence lengths of the packed codec
+        for (int gap : new int[]{6, 7, 8, 261, 262, 263, 1000}) {
+            byte[] block = silent(gap * 2 + 2);
+            block[gap] = 1;
+            block[gap * 2 + 1] = 31;
+            blocks.add(block);
+        }
+
+        Random random = new Random(1);
+        for (int density : new int[]{2, 8, 64}) {
+            byte[] block = silent(JukeboxFormat.BLOCK);
+            for (int i = 0; i < block.length; i++)
+                if (random.nextInt(density) == 0) block[i] = (byte) random.nextInt(32);
+            blocks.add(block);
+        }
+        return blocks;
+    }
+
+    private static byte[] silent(int length) {
+        byte[] block = new byte[length];
+        Arrays.fill(block, (byte) -1);
+        return block;
+    }
+
+    private static void check(NoteCodec codec, byte[] block, List<String> failures) {
+        String name = "%s, %d notes of %d".formatted(codec.name(), notes(block), block.length);
+        try {
+            // Decode from the middle of larger arrays, like the song file does
+            byte[] encoded = codec.encode(block, 0, block.length);
+            byte[] src = new byte[encoded.length + 8];
+            System.arraycopy(encoded, 0, src, 4, encoded.length);
+            byte[] dst = new byte[block.length + 8];
+            codec.decode(src, 4, encoded.length, dst, 4, block.length);
+            if (!Arrays.equals(dst, 4, 4 + block.length, block, 0, block.length)) failures.add(name + ": notes differ");
+        } catch (Exception e) {
+            failures.add(name + ": " + e.getMessage());
+        }
+    }
+
+    // A song with a silent padding track, spanning more than one block
+    private static void checkFile(NoteCodec codec, List<String> failures) {
+        String name = "%s, song file".formatted(codec.name());
+        try {
+            byte[][] notes = new byte[TrackReader.TRACKS][];
+            Random random = new Random(2);
+            for (int t = 0; t < notes.length; t++) {
+                notes[t] = silent(JukeboxFormat.BLOCK * 2 + 500);
+                if (t == notes.length - 1) continue;
+                for (int i = 0; i < notes[t].length; i += 1 + random.nextInt(20)) notes[t][i] = (byte) random.nextInt(32);
+            }
+            TrackStorage[] tracks = new TrackStorage[notes.length];
+            for (int t = 0; t < notes.length; t++) tracks[t] = TrackStorage.of(notes[t]);
+
+            JukeboxSong.State state = new JukeboxSong.State((byte) 0, JukeboxLayout.DEFAULT.start());
+            JukeboxFormat.Decoded decoded = JukeboxFormat.decode(JukeboxFormat.encode(tracks, state, false, codec));
+            if (!Arrays.deepEquals(decoded.notes(), notes)) failures.add(name + ": notes differ");
+        } catch (Exception e) {
+            failures.add(name + ": " + e.getMessage());
+        }
+    }
+
+    private static int notes(byte[] block) {
+        int count = 0;
+        for (byte note : block) if (note != -1) count++;
+        return count;
+    }
+}
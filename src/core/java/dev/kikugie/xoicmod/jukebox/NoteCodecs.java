@@ -0,0 +1,181 @@
+package dev.kikugie.xoicmod.jukebox;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+public class NoteCodecs {
+    public static final NoteCodec DEFLATE = new DeflateCodec(0, "deflate", null);
+    public static final NoteCodec PACKED = new PackedCodec();
+    public static final NoteCodec PACKED_DEFLATE = new DeflateCodec(2, "packed_deflate", PACKED);
+    private static final NoteCodec[] REGISTRY = new NoteCodec[256];
+
+    static {
+        register(DEFLATE);
+        register(PACKED);
+        register(PACKED_DEFLATE);
+    }
+
+    public static void register(NoteCodec codec) {
+        if (REGISTRY[codec.id()] != null) throw new IllegalArgumentException("Codec id %d is already used by %s".formatted(codec.id(), REGISTRY[codec.id()].name()));
+        REGISTRY[codec.id()] = codec;
+    }
+
+    public static NoteCodec get(int id) {
+        NoteCodec codec = id >= 0 && id < REGISTRY.length ? REGISTRY[id] : null;
+        if (codec == null) throw new IllegalStateException("Unsupported song codec %d".formatted(id));
+        return codec;
+    }
+
+    public static NoteCodec get(String name) {
+        for (NoteCodec codec : REGISTRY)
+            if (codec != null && codec.name().equalsIgnoreCase(name)) return codec;
+        throw new IllegalArgumentException("Unknown song codec %s".formatted(name));
+    }
+
+    // Deflate, optionally applied to the output of another codec
+    private record DeflateCodec(int id, String name, NoteCodec inner) implements NoteCodec {
+        @Override
+        public boolean supports(byte[] data, int from, int length) {
+            return inner == null || inner.supports(data, from, length);
+        }
+
+        @Override
+        public byte[] encode(byte[] data, int from, int length) {
+            if (inner != null) {
+                data = inner.encode(data, from, length);
+                from = 0;
+                length = data.length;
+            }
+
+            Deflater deflater = new Deflater(9);
+            try {
+                deflater.setInput(data, from, length);
+                deflater.finish();
+                byte[] output = new byte[length / 8 + 64];
+                int size = 0;
+                while (!deflater.finished()) {
+                    if (size == output.length) output = Arrays.copyOf(output, output.length * 2);
+                    size += deflater.deflate(output, size, output.length - size);
+                }
+                return Arrays.copyOf(output, size);
+            } finally {
+                deflater.end();
+            }
+        }
+
+        @Override
+        public void decode(byte[] src, int from, int length, byte[] dst, int dstFrom, int dstLength) {
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(src, from, length);
+                if (inner == null) {
+                    inflate(inflater, dst, dstFrom, dstLength);
+                    return;
+                }
+
+                // Packed data is not larger than the notes, so one buffer of that size fits the stream
+                byte[] packed = new byte[dstLength + 16];
+                int size = 0;
+                while (!inflater.finished()) {
+                    if (size == packed.length) packed = Arrays.copyOf(packed, packed.length * 2);
+                    int read = inflater.inflate(packed, size, packed.length - size);
+                    size += read;
+                    // Silent blocks pack to nothing, so the stream can finish without producing a byte
+                    if (read == 0 && !inflater.finished() && (inflater.needsInput() || inflater.needsDictionary()))
+                        throw new IllegalStateException("Song data is truncated");
+                }
+                inner.decode(packed, 0, size, dst, dstFrom, dstLength);
+            } catch (DataFormatException e) {
+                throw new IllegalStateException("Song data is corrupted", e);
+            } finally {
+                inflater.end();
+            }
+        }
+
+        private static void inflate(Inflater inflater, byte[] dst, int from, int length) throws DataFormatException {
+            int count = 0;
+            while (count < length && !inflater.finished()) {
+                int read = inflater.inflate(dst, from + count, length - count);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                count += read;
+            }
+            if (count != length) throw new IllegalStateException("Song data is truncated");
+        }
+    }
+
+    /*
+    One byte per note: the 5 low bits hold the note, the 3 high bits hold the silence before it.
+    A silence of 7 or more is stored as 7, followed by the remaining length as a sum of bytes ending with one below 255.
+    Silence after the last note is implied by the block length
+    */
+    private static final class PackedCodec implements NoteCodec {
+        private static final int EXTENDED = 7;
+
+        @Override
+        public int id() {
+            return 1;
+        }
+
+        @Override
+        public String name() {
+            return "packed";
+        }
+
+        @Override
+        public boolean supports(byte[] data, int from, int length) {
+            for (int i = from; i < from + length; i++)
+                if (data[i] < -1 || data[i] > 31) return false;
+            return true;
+        }
+
+        @Override
+        public byte[] encode(byte[] data, int from, int length) {
+            byte[] output = new byte[length + length / 255 + 8];
+            int size = 0;
+            int gap = 0;
+            for (int i = from; i < from + length; i++) {
+                byte note = data[i];
+                if (note == -1) {
+                    gap++;
+                    continue;
+                }
+
+                if (gap < EXTENDED) output[size++] = (byte) (gap << 5 | note);
+                else {
+                    output[size++] = (byte) (EXTENDED << 5 | note);
+                    for (gap -= EXTENDED; gap >= 255; gap -= 255) output[size++] = (byte) 255;
+                    output[size++] = (byte) gap;
+                }
+                gap = 0;
+            }
+            return Arrays.copyOf(output, size);
+        }
+
+        @Override
+        public void decode(byte[] src, int from, int length, byte[] dst, int dstFrom, int dstLength) {
+            Arrays.fill(dst, dstFrom, dstFrom + dstLength, (byte) -1);
+            int position = from;
+            int end = from + length;
+            int i = dstFrom;
+            int dstEnd = dstFrom + dstLength;
+            while (position < end) {
+                int token = src[position++] & 0xFF;
+                int gap = token >>> 5;
+                if (gap == EXTENDED) {
+                    int extra;
+                    do {
+                        if (position >= end) throw new IllegalStateException("Song data is truncated");
+                        extra = src[position++] & 0xFF;
+                        gap += extra;
+                    } while (extra == 255);
+                }
+
+                i += gap;
+                if (i >= dstEnd) throw new IllegalStateException("Song data is corrupted");
+                dst[i++] = (byte) (token & 0x1F);
+            }
+        }
+    }
+}
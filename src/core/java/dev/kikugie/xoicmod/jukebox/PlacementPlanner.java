@@ -0,0 +1,180 @@
+package dev.kikugie.xoicmod.jukebox;
+
+import java.util.Arrays;
+
+// Plans the clicks that place one box worth of items, choosing source stacks to send the fewest packets.
+// Reused for every box, so nothing is allocated unless the mapping count changes
+final class PlacementPlanner {
+    static final int PICKUP = 0;
+    static final int SWAP = 1;
+    static final int HOTBAR = 9;
+    private static final int UNREACHABLE = Integer.MAX_VALUE / 2;
+
+    final int slots;
+    final int inventory;
+
+    // Per-id counts for the current box
+    private int[] required = new int[0];
+    private int[] available = new int[0];
+    // Box slots grouped by id, `cursor[id]` points at the next unassigned one in `targets`
+    private int[] cursor = new int[0];
+    private final int[] targets;
+    private final int[] ids;
+
+    // Inventory stacks holding required items
+    private final int[] stackIndex;
+    private final int[] stackCount;
+    private final int[] stackId;
+    private int stacks = 0;
+
+    // Knapsack over the stacks of one id: `cost[j]` is the cheapest way to place j items
+    private final int[] cost;
+    private final int[][] taken;
+    private final int[] candidates;
+
+    // Planned clicks. Box slots are `0..slots`, inventory indexes are offset by `slots`
+    final int[] action;
+    final int[] slot;
+    final int[] button;
+    int clicks = 0;
+
+    PlacementPlanner(int slots, int inventory) {
+        this.slots = slots;
+        this.inventory = inventory;
+        this.targets = new int[slots];
+        this.ids = new int[slots];
+        this.stackIndex = new int[inventory];
+        this.stackCount = new int[inventory];
+        this.stackId = new int[inventory];
+        this.cost = new int[slots + 1];
+        this.taken = new int[inventory][slots + 1];
+        this.candidates = new int[inventory];
+        // Worst case is a pickup, a click and a put back for every item
+        this.action = new int[slots * 3];
+        this.slot = new int[slots * 3];
+        this.button = new int[slots * 3];
+    }
+
+    int ids() {
+        return required.length;
+    }
+
+    void begin(int ids) {
+        if (required.length != ids) {
+            required = new int[ids];
+            available = new int[ids];
+            cursor = new int[ids];
+        } else {
+            Arrays.fill(required, 0);
+            Arrays.fill(available, 0);
+        }
+        Arrays.fill(this.ids, -1);
+        stacks = 0;
+        clicks = 0;
+    }
+
+    // Slots without a requirement are left untouched, which lets a partially filled box be completed
+    void require(int slot, int id) {
+        ids[slot] = id;
+        required[id]++;
+    }
+
+    boolean required(int id) {
+        return id >= 0 && id < required.length && required[id] > 0;
+    }
+
+    // Must be called after every `require` for the box
+    void stack(int index, int count, int id) {
+        if (!required(id) || count <= 0) return;
+        stackIndex[stacks] = index;
+        stackCount[stacks] = count;
+        stackId[stacks++] = id;
+        available[id] += count;
+    }
+
+    int missing(int id) {
+        return Math.max(0, required[id] - available[id]);
+    }
+
+    void plan() {
+        int position = 0;
+        for (int id = 0; id < required.length; id++) {
+            cursor[id] = position;
+            position += required[id];
+        }
+        for (int slot = 0; slot < slots; slot++)
+            if (ids[slot] >= 0) targets[cursor[ids[slot]]++] = slot;
+        for (int id = 0; id < required.length; id++)
+            cursor[id] -= required[id];
+
+        for (int id = 0; id < required.length; id++)
+            if (required[id] > 0) planId(id);
+    }
+
+    private void planId(int id) {
+        int needed = required[id];
+        Arrays.fill(cost, 1, needed + 1, UNREACHABLE);
+        cost[0] = 0;
+
+        int count = 0;
+        for (int s = 0; s < stacks; s++) {
+            if (stackId[s] != id) continue;
+            int size = stackCount[s];
+            boolean swap = swappable(s);
+            int[] choice = taken[count];
+            // Descending so `cost[j - t]` still holds the result without this stack
+            for (int j = needed; j > 0; j--) {
+                int best = cost[j];
+                int pick = 0;
+                for (int t = 1, max = Math.min(size, j); t <= max; t++) {
+                    int price = cost[j - t] + price(size, t, swap);
+                    if (price < best) {
+                        best = price;
+                        pick = t;
+                    }
+                }
+                cost[j] = best;
+                choice[j] = pick;
+            }
+            candidates[count++] = s;
+        }
+
+        for (int i = count - 1, j = needed; i >= 0 && j > 0; i--) {
+            int t = taken[i][j];
+            if (t == 0) continue;
+            emit(candidates[i], id, t);
+            j -= t;
+        }
+    }
+
+    // A single item in the hotbar can be swapped into an empty box slot with one packet
+    private boolean swappable(int stack) {
+        return stackCount[stack] == 1 && stackIndex[stack] < HOTBAR;
+    }
+
+    // Pickup, one right click per item and a put back, unless the stack is used up exactly
+    private static int price(int size, int taken, boolean swap) {
+        if (swap) return 1;
+        return 1 + taken + (taken < size ? 1 : 0);
+    }
+
+    private void emit(int stack, int id, int count) {
+        int index = stackIndex[stack];
+        if (swappable(stack)) {
+            click(SWAP, targets[cursor[id]++], index);
+            return;
+        }
+
+        click(PICKUP, slots + index, 0);
+        for (int i = 0; i < count; i++)
+            click(PICKUP, targets[cursor[id]++], 1);
+        if (count < stackCount[stack])
+            click(PICKUP, slots + index, 0);
+    }
+
+    private void click(int action, int slot, int button) {
+        this.action[clicks] = action;
+        this.slot[clicks] = slot;
+        this.button[clicks++] = button;
+    }
+}
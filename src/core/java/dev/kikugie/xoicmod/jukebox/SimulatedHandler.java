@@ -0,0 +1,185 @@
+package dev.kikugie.xoicmod.jukebox;
+
+import java.util.Arrays;
+
+// Shulker box screen handler without the game: 27 box slots, the main inventory and then the hotbar, like the vanilla one.
+// Items are canonical note ids, with UNMAPPED for anything else. Clicks follow the vanilla handler for pickup,
+// right click, hotbar swap, shift click and drag
+final class SimulatedHandler {
+    // Planner actions keep their ids, the others continue after them
+    static final int PICKUP = PlacementPlanner.PICKUP;
+    static final int SWAP = PlacementPlanner.SWAP;
+    static final int QUICK_MOVE = FillHandler.QUICK_MOVE;
+    static final int QUICK_CRAFT = 3;
+
+    static final int BOX = FillPlan.SLOTS;
+    static final int INVENTORY = 36;
+    static final int SIZE = BOX + INVENTORY;
+    static final int EMPTY = -1;
+    static final int UNMAPPED = -2;
+    static final int MAX_STACK = 64;
+
+    final int[] items = new int[SIZE];
+    final int[] counts = new int[SIZE];
+    int cursorItem = EMPTY;
+    int cursorCount = 0;
+    // Bumped whenever the server overrides the client's contents
+    int revision = 0;
+
+    // Drag in progress: type 0 splits evenly, 1 places one per slot
+    private int dragType = -1;
+    private final boolean[] dragged = new boolean[SIZE];
+    private int dragSlots = 0;
+
+    SimulatedHandler() {
+        Arrays.fill(items, EMPTY);
+    }
+
+    // Handler slot of an inventory index, the hotbar comes after the main inventory
+    static int slotOf(int index) {
+        return index < PlacementPlanner.HOTBAR ? BOX + 27 + index : BOX + index - PlacementPlanner.HOTBAR;
+    }
+
+    // Inventory index of a handler slot, -1 for box slots
+    static int indexOf(int slot) {
+        if (slot < BOX) return -1;
+        int position = slot - BOX;
+        return position >= 27 ? position - 27 : position + PlacementPlanner.HOTBAR;
+    }
+
+    void set(int slot, int item, int count) {
+        items[slot] = count <= 0 ? EMPTY : item;
+        counts[slot] = count <= 0 ? 0 : count;
+    }
+
+    void setCursor(int item, int count) {
+        cursorItem = count <= 0 ? EMPTY : item;
+        cursorCount = count <= 0 ? 0 : count;
+    }
+
+    boolean isEmpty(int slot) {
+        return items[slot] == EMPTY;
+    }
+
+    void clearBox() {
+        for (int slot = 0; slot < BOX; slot++) set(slot, EMPTY, 0);
+    }
+
+    void copyFrom(SimulatedHandler other) {
+        System.arraycopy(other.items, 0, items, 0, SIZE);
+        System.arraycopy(other.counts, 0, counts, 0, SIZE);
+        cursorItem = other.cursorItem;
+        cursorCount = other.cursorCount;
+        dragType = -1;
+    }
+
+    boolean matches(SimulatedHandler other) {
+        return Arrays.equals(items, other.items) && Arrays.equals(counts, other.counts)
+            && cursorItem == other.cursorItem && cursorCount == other.cursorCount;
+    }
+
+    void click(int slot, int button, int action) {
+        if (slot < 0 || slot >= SIZE) throw new IllegalArgumentException("No slot %d in the handler".formatted(slot));
+        // Anything but a drag step cancels the drag, like the vanilla handler
+        if (action != QUICK_CRAFT) dragType = -1;
+        switch (action) {
+            case PICKUP -> pickup(slot, button);
+            case SWAP -> swap(slot, button);
+            case QUICK_MOVE -> quickMove(slot);
+            case QUICK_CRAFT -> drag(slot, button);
+            default -> throw new IllegalArgumentException("Unknown action %d".formatted(action));
+        }
+    }
+
+    private void pickup(int slot, int button) {
+        boolean right = button == 1;
+        if (cursorItem == EMPTY) {
+            if (items[slot] == EMPTY) return;
+            int taken = right ? (counts[slot] + 1) / 2 : counts[slot];
+            setCursor(items[slot], taken);
+            set(slot, items[slot], counts[slot] - taken);
+        } else if (items[slot] == EMPTY || items[slot] == cursorItem) {
+            int room = MAX_STACK - counts[slot];
+            int placed = Math.min(right ? 1 : cursorCount, room);
+            if (placed <= 0) return;
+            set(slot, cursorItem, counts[slot] + placed);
+            setCursor(cursorItem, cursorCount - placed);
+        } else {
+            int item = items[slot];
+            int count = counts[slot];
+            set(slot, cursorItem, cursorCount);
+            setCursor(item, count);
+        }
+    }
+
+    // Swaps with a hotbar slot, the button is the hotbar index
+    private void swap(int slot, int button) {
+        int hotbar = slotOf(button);
+        int item = items[slot];
+        int count = counts[slot];
+        set(slot, items[hotbar], counts[hotbar]);
+        set(hotbar, item, count);
+    }
+
+    // Box slots go to the inventory starting from the end of the hotbar, inventory slots go to the box
+    private void quickMove(int slot) {
+        if (items[slot] == EMPTY) return;
+        if (slot < BOX) insert(slot, BOX, SIZE, true);
+        else insert(slot, 0, BOX, false);
+    }
+
+    // Merges into matching stacks first and then takes empty slots
+    private void insert(int source, int from, int to, boolean reverse) {
+        int item = items[source];
+        int left = counts[source];
+        for (int pass = 0; pass < 2 && left > 0; pass++)
+            for (int i = 0; i < to - from && left > 0; i++) {
+                int slot = reverse ? to - 1 - i : from + i;
+                if (pass == 0 ? items[slot] != item : items[slot] != EMPTY) continue;
+                int moved = Math.min(left, MAX_STACK - counts[slot]);
+                if (moved <= 0) continue;
+                set(slot, item, counts[slot] + moved);
+                left -= moved;
+            }
+        set(source, item, left);
+    }
+
+    // The button holds the stage in the low 2 bits and the drag type above them
+    private void drag(int slot, int button) {
+        int stage = button & 3;
+        int type = button >> 2 & 3;
+        switch (stage) {
+            case 0 -> {
+                dragType = cursorItem != EMPTY && type <= 1 ? type : -1;
+                Arrays.fill(dragged, false);
+                dragSlots = 0;
+            }
+            case 1 -> {
+                if (dragType == -1 || dragged[slot]) return;
+                if (items[slot] != EMPTY && items[slot] != cursorItem) return;
+                if (dragSlots >= cursorCount) return;
+                dragged[slot] = true;
+                dragSlots++;
+            }
+            case 2 -> {
+                int active = dragType;
+                dragType = -1;
+                if (active == -1 || dragSlots == 0) return;
+                if (dragSlots == 1) {
+                    for (int i = 0; i < SIZE; i++)
+                        if (dragged[i]) pickup(i, active);
+                    return;
+                }
+                int each = active == 0 ? cursorCount / dragSlots : 1;
+                for (int i = 0; i < SIZE && cursorCount > 0; i++) {
+                    if (!dragged[i]) continue;
+                    int placed = Math.min(Math.min(each, cursorCount), MAX_STACK - counts[i]);
+                    if (placed <= 0) continue;
+                    set(i, cursorItem, counts[i] + placed);
+                    setCursor(cursorItem, cursorCount - placed);
+                }
+            }
+            default -> dragType = -1;
+        }
+    }
+}
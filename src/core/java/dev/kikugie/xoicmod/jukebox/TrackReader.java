@@ -0,0 +1,111 @@
+package dev.kikugie.xoicmod.jukebox;
+
+import dev.kikugie.xoicmod.javanbs.NBSColumns;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+// Builds jukebox tracks from the columns of an NBS song, storing keys relative to the lowest note block pitch.
+// Songs take whole jukebox units of six tracks each, up to the given number of units
+public class TrackReader {
+    static final int TRACKS = 6;
+    static final int KEY_OFFSET = 33;
+    final List<TrackStorage.SparseTrack.Builder> builders = new ArrayList<>();
+    // Keys at or above this are dropped, the game keeps them and rejects the song when compiling the plan
+    final int keys;
+    // Packing moves notes from any layer to the lowest free track at their tick, otherwise layers map to tracks directly
+    final boolean pack;
+    final int units;
+    int length;
+    int notes = 0;
+    int droppedLayers = 0;
+    int droppedKeys = 0;
+    int droppedTicks = 0;
+    // Highest used layer + 1 and most notes at a single tick, for reporting how much packing saved
+    int layers = 0;
+    int voices = 0;
+    private int tick = -1;
+    private int voice = 0;
+
+    public TrackReader() {
+        this(Integer.MAX_VALUE, false, 1);
+    }
+
+    public TrackReader(int keys) {
+        this(keys, false, 1);
+    }
+
+    public TrackReader(int keys, boolean pack, int units) {
+        if (units < 1) throw new IllegalArgumentException("Song needs at least one jukebox unit, got %d".formatted(units));
+        this.keys = keys;
+        this.pack = pack;
+        this.units = units;
+    }
+
+    public static TrackStorage[] read(Path file) throws Exception {
+        return new TrackReader().readTracks(file);
+    }
+
+    public TrackStorage[] readTracks(Path file) throws Exception {
+        return readTracks(NBSColumns.read(file.toString()));
+    }
+
+    public TrackStorage[] readTracks(byte[] data) throws Exception {
+        return readTracks(NBSColumns.read(ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN)));
+    }
+
+    public TrackStorage[] readTracks(NBSColumns song) {
+        length = song.getHeader().getLength();
+        builders.clear();
+        tick = -1;
+        int[] ticks = song.getTicks();
+        short[] layers = song.getLayers();
+        byte[] keys = song.getKeys();
+        for (int i = 0; i < song.size(); i++) note(ticks[i], layers[i], keys[i]);
+        return build();
+    }
+
+    private void note(int tick, int layer, int key) {
+        notes++;
+        if (tick >= length) {
+            droppedTicks++;
+            return;
+        }
+        if (key - KEY_OFFSET < 0 || key - KEY_OFFSET >= keys) {
+            droppedKeys++;
+            return;
+        }
+
+        // Notes come ordered by tick, so the next free track is a counter reset on every new tick
+        if (tick != this.tick) {
+            this.tick = tick;
+            voice = 0;
+        }
+        layers = Math.max(layers, layer + 1);
+        voices = Math.max(voices, ++voice);
+
+        int track = pack ? voice - 1 : layer;
+        if (track >= units * TRACKS) {
+            droppedLayers++;
+            return;
+        }
+        while (builders.size() <= track) builders.add(new TrackStorage.SparseTrack.Builder());
+        builders.get(track).set(tick, (byte) (key - KEY_OFFSET));
+    }
+
+    int dropped() {
+        return droppedLayers + droppedKeys + droppedTicks;
+    }
+
+    // Used tracks are rounded up to whole units, the rest of a unit is filled with silence
+    TrackStorage[] build() {
+        int count = Math.max(1, (builders.size() + TRACKS - 1) / TRACKS) * TRACKS;
+        while (builders.size() < count) builders.add(new TrackStorage.SparseTrack.Builder());
+        TrackStorage[] tracks = new TrackStorage[count];
+        for (int i = 0; i < tracks.length; i++) tracks[i] = builders.get(i).build(length);
+        return tracks;
+    }
+}
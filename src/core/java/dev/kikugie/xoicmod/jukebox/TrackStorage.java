@@ -0,0 +1,227 @@
+package dev.kikugie.xoicmod.jukebox;
+
+import java.util.Arrays;
+
+// Notes of one track, -1 being silence
+public interface TrackStorage {
+    int length();
+
+    byte get(int position);
+
+    // Number of positions that aren't silent
+    int notes();
+
+    // Approximate heap size of the note data
+    long bytes();
+
+    default void copyTo(int from, byte[] dst, int dstFrom, int length) {
+        for (int i = 0; i < length; i++) dst[dstFrom + i] = get(from + i);
+    }
+
+    // Picks the smallest representation for the given notes
+    static TrackStorage of(byte[] notes) {
+        int count = 0;
+        boolean packable = true;
+        for (byte note : notes) {
+            if (note != -1) count++;
+            if (note < -1 || note > PackedTrack.MAX) packable = false;
+        }
+
+        if (SparseTrack.fits(count, notes.length)) return SparseTrack.of(notes, count);
+        if (packable) return PackedTrack.of(notes);
+        return new DenseTrack(notes);
+    }
+
+    static TrackStorage silent(int length) {
+        return new SparseTrack(new int[0], new byte[0], 0, length);
+    }
+
+    record DenseTrack(byte[] data) implements TrackStorage {
+        @Override
+        public int length() {
+            return data.length;
+        }
+
+        @Override
+        public byte get(int position) {
+            return data[position];
+        }
+
+        @Override
+        public int notes() {
+            int count = 0;
+            for (byte note : data) if (note != -1) count++;
+            return count;
+        }
+
+        @Override
+        public long bytes() {
+            return data.length;
+        }
+
+        @Override
+        public void copyTo(int from, byte[] dst, int dstFrom, int length) {
+            System.arraycopy(data, from, dst, dstFrom, length);
+        }
+    }
+
+    // 12 notes per long, each stored as note + 1 in 5 bits
+    final class PackedTrack implements TrackStorage {
+        static final int MAX = 30;
+        private static final int PER_WORD = 12;
+        private final long[] words;
+        private final int length;
+        private final int notes;
+
+        private PackedTrack(long[] words, int length, int notes) {
+            this.words = words;
+            this.length = length;
+            this.notes = notes;
+        }
+
+        static PackedTrack of(byte[] data) {
+            long[] words = new long[(data.length + PER_WORD - 1) / PER_WORD];
+            int notes = 0;
+            for (int i = 0; i < data.length; i++) {
+                if (data[i] != -1) notes++;
+                words[i / PER_WORD] |= (long) (data[i] + 1) << (i % PER_WORD * 5);
+            }
+            return new PackedTrack(words, data.length, notes);
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public byte get(int position) {
+            if (position < 0 || position >= length) throw new IndexOutOfBoundsException(position);
+            return (byte) ((words[position / PER_WORD] >>> (position % PER_WORD * 5) & 0x1F) - 1);
+        }
+
+        @Override
+        public int notes() {
+            return notes;
+        }
+
+        @Override
+        public long bytes() {
+            return words.length * 8L;
+        }
+    }
+
+    // Sorted positions of notes, with silence everywhere else
+    final class SparseTrack implements TrackStorage {
+        private final int[] positions;
+        private final byte[] values;
+        private final int size;
+        private final int length;
+
+        SparseTrack(int[] positions, byte[] values, int size, int length) {
+            this.positions = positions;
+            this.values = values;
+            this.size = size;
+            this.length = length;
+        }
+
+        // Sparse storage takes 5 bytes per note against 5 bits per position for packed storage
+        static boolean fits(int notes, int length) {
+            return notes * 8L < length;
+        }
+
+        static SparseTrack of(byte[] data, int count) {
+            int[] positions = new int[count];
+            byte[] values = new byte[count];
+            int size = 0;
+            for (int i = 0; i < data.length; i++)
+                if (data[i] != -1) {
+                    positions[size] = i;
+                    values[size++] = data[i];
+                }
+            return new SparseTrack(positions, values, size, data.length);
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public byte get(int position) {
+            if (position < 0 || position >= length) throw new IndexOutOfBoundsException(position);
+            int index = Arrays.binarySearch(positions, 0, size, position);
+            return index >= 0 ? values[index] : -1;
+        }
+
+        @Override
+        public int notes() {
+            return size;
+        }
+
+        @Override
+        public long bytes() {
+            return positions.length * 5L;
+        }
+
+        @Override
+        public void copyTo(int from, byte[] dst, int dstFrom, int length) {
+            Arrays.fill(dst, dstFrom, dstFrom + length, (byte) -1);
+            int index = Arrays.binarySearch(positions, 0, size, from);
+            if (index < 0) index = -index - 1;
+            for (; index < size && positions[index] < from + length; index++)
+                dst[dstFrom + positions[index] - from] = values[index];
+        }
+
+        // Collects notes in increasing order without allocating the full track
+        static final class Builder {
+            private int[] positions = new int[64];
+            private byte[] values = new byte[64];
+            private int size = 0;
+            private boolean ordered = true;
+            private boolean packable = true;
+
+            void set(int position, byte value) {
+                // Same position again overwrites the note, matching writes into a dense array
+                if (size > 0 && positions[size - 1] == position) {
+                    values[size - 1] = value;
+                } else {
+                    if (size > 0 && positions[size - 1] > position) ordered = false;
+                    if (size == positions.length) {
+                        positions = Arrays.copyOf(positions, size * 2);
+                        values = Arrays.copyOf(values, size * 2);
+                    }
+                    positions[size] = position;
+                    values[size++] = value;
+                }
+                if (value < -1 || value > PackedTrack.MAX) packable = false;
+            }
+
+            TrackStorage build(int length) {
+                if (!ordered) {
+                    byte[] dense = new byte[length];
+                    Arrays.fill(dense, (byte) -1);
+                    for (int i = 0; i < size; i++) dense[positions[i]] = values[i];
+                    return TrackStorage.of(dense);
+                }
+
+                // Silent notes can't be stored sparsely, drop them
+                int count = 0;
+                for (int i = 0; i < size; i++)
+                    if (values[i] != -1) {
+                        positions[count] = positions[i];
+                        values[count++] = values[i];
+                    }
+                size = count;
+
+                if (fits(size, length))
+                    return new SparseTrack(Arrays.copyOf(positions, size), Arrays.copyOf(values, size), size, length);
+
+                byte[] dense = new byte[length];
+                Arrays.fill(dense, (byte) -1);
+                for (int i = 0; i < size; i++) dense[positions[i]] = values[i];
+                return packable ? PackedTrack.of(dense) : new DenseTrack(dense);
+            }
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package dev.kikugie.xoicmod.jukebox;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PlacementBenchmark {
+    private static final int INVENTORY = 36;
+    private static final int BOXES = 1024;
+
+    // Boxes taken from a compiled song, with a shuffled inventory holding each box's items
+    final PlacementPlanner planner = new PlacementPlanner(FillPlan.SLOTS, INVENTORY);
+    int[][] notes;
+    int[][] inventoryIds;
+    int[][] inventoryCounts;
+    int box = 0;
+
+    @Setup
+    public void setup() throws Exception {
+        TrackStorage[] tracks = SyntheticSongs.tracks(16000, 42);
+        FillPlan plan = FillPlan.compile(tracks, new JukeboxSong.State((byte) 0, JukeboxLayout.DEFAULT.start()), SyntheticSongs.MAPPINGS);
+        Random random = new Random(42);
+        notes = new int[BOXES][FillPlan.SLOTS];
+        inventoryIds = new int[BOXES][INVENTORY];
+        inventoryCounts = new int[BOXES][INVENTORY];
+        for (int b = 0; b < BOXES; b++) {
+            int source = b % plan.boxes();
+            int[] required = new int[SyntheticSongs.MAPPINGS];
+            for (int slot = 0; slot < FillPlan.SLOTS; slot++) {
+                notes[b][slot] = plan.note(source, slot);
+                required[notes[b][slot]]++;
+            }
+            Arrays.fill(inventoryIds[b], -1);
+            int[] order = shuffled(random);
+            int used = 0;
+            for (int id = 0; id < required.length && used < INVENTORY; id++) {
+                if (required[id] == 0) continue;
+                int left = required[id] + random.nextInt(32);
+                while (left > 0 && used < INVENTORY) {
+                    int index = order[used++];
+                    int count = Math.min(left, 1 + random.nextInt(64));
+                    inventoryIds[b][index] = id;
+                    inventoryCounts[b][index] = count;
+                    left -= count;
+                }
+            }
+        }
+    }
+
+    private static int[] shuffled(Random random) {
+        int[] order = new int[INVENTORY];
+        for (int i = 0; i < INVENTORY; i++) order[i] = i;
+        for (int i = INVENTORY - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = order[i];
+            order[i] = order[j];
+            order[j] = swap;
+        }
+        return order;
+    }
+
+    @Benchmark
+    public int plan() {
+        int b = box++ & (BOXES - 1);
+        planner.begin(SyntheticSongs.MAPPINGS);
+        for (int slot = 0; slot < FillPlan.SLOTS; slot++) planner.require(slot, notes[b][slot]);
+        for (int i = 0; i < INVENTORY; i++)
+            if (inventoryIds[b][i] != -1) planner.stack(i, inventoryCounts[b][i], inventoryIds[b][i]);
+        planner.plan();
+        return planner.clicks;
+    }
+}
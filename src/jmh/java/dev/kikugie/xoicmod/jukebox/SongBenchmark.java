@@ -0,0 +1,68 @@
+package dev.kikugie.xoicmod.jukebox;
+
+import dev.kikugie.xoicmod.javanbs.NBSColumns;
+import dev.kikugie.xoicmod.javanbs.NBSReader;
+import dev.kikugie.xoicmod.javanbs.NBSSong;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SongBenchmark {
+    // Stops short of 65k ticks: NBS song lengths and jukebox track offsets are signed shorts,
+    // so 32767 ticks is the longest song this tree can load
+    @Param({"1000", "8000", "32000"})
+    int ticks;
+    @Param({"deflate", "packed", "packed_deflate"})
+    String codec;
+
+    Path file;
+    TrackStorage[] tracks;
+    JukeboxSong.State start = new JukeboxSong.State((byte) 0, JukeboxLayout.DEFAULT.start());
+    NoteCodec noteCodec;
+    byte[] encoded;
+
+    @Setup
+    public void setup() throws Exception {
+        file = SyntheticSongs.write(ticks, 42);
+        tracks = TrackReader.read(file);
+        noteCodec = NoteCodecs.get(codec);
+        encoded = JukeboxFormat.encode(tracks, start, false, noteCodec);
+    }
+
+    @Benchmark
+    public NBSSong parseSong() throws Exception {
+        return NBSReader.readSong(file.toString());
+    }
+
+    @Benchmark
+    public NBSColumns parseColumns() throws Exception {
+        return NBSColumns.read(file.toString());
+    }
+
+    @Benchmark
+    public TrackStorage[] readTracks() throws Exception {
+        return TrackReader.read(file);
+    }
+
+    @Benchmark
+    public byte[] encode() throws Exception {
+        return JukeboxFormat.encode(tracks, start, false, noteCodec);
+    }
+
+    @Benchmark
+    public JukeboxFormat.Decoded decode() throws Exception {
+        return JukeboxFormat.decode(encoded);
+    }
+
+    @Benchmark
+    public FillPlan compilePlan() throws Exception {
+        return FillPlan.compile(tracks, start, SyntheticSongs.MAPPINGS);
+    }
+}
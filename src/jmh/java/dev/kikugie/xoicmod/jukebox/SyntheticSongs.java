@@ -0,0 +1,91 @@
+package dev.kikugie.xoicmod.jukebox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+// Seeded NBS songs, so every benchmark run works on the same data
+final class SyntheticSongs {
+    static final int LAYERS = 8;
+    static final int MAPPINGS = 26;
+
+    private SyntheticSongs() {
+    }
+
+    static Path write(int ticks, long seed) throws IOException {
+        Path file = Files.createTempFile("jukebox-bench", ".nbs");
+        file.toFile().deleteOnExit();
+        Files.write(file, encode(ticks, seed));
+        return file;
+    }
+
+    static TrackStorage[] tracks(int ticks, long seed) throws Exception {
+        return TrackReader.read(write(ticks, seed));
+    }
+
+    // Version 5 song with notes on about a third of the ticks, keys kept inside the note block range
+    static byte[] encode(int ticks, long seed) {
+        Random random = new Random(seed);
+        Output out = new Output();
+        out.shortLE(0);
+        out.write(5);
+        out.write(16);
+        out.shortLE(ticks);
+        out.shortLE(LAYERS);
+        out.string("Benchmark");
+        out.string("xoicmod");
+        out.string("");
+        out.string("");
+        out.shortLE(1000);
+        out.write(0);
+        out.write(10);
+        out.write(4);
+        for (int i = 0; i < 5; i++) out.intLE(0);
+        out.string("");
+        out.write(0);
+        out.write(0);
+        out.shortLE(0);
+
+        int last = -1;
+        for (int tick = 0; tick < ticks; tick++) {
+            if (random.nextInt(3) != 0) continue;
+            out.shortLE(tick - last);
+            last = tick;
+            int layer = -1;
+            for (int l = 0; l < LAYERS; l++) {
+                if (random.nextBoolean()) continue;
+                out.shortLE(l - layer);
+                layer = l;
+                out.write(random.nextInt(16));
+                out.write(TrackReader.KEY_OFFSET + random.nextInt(MAPPINGS - 1));
+                out.write(100);
+                out.write(100);
+                out.shortLE(0);
+            }
+            out.shortLE(0);
+        }
+        out.shortLE(0);
+        return out.toByteArray();
+    }
+
+    private static final class Output extends ByteArrayOutputStream {
+        void shortLE(int value) {
+            write(value);
+            write(value >> 8);
+        }
+
+        void intLE(int value) {
+            shortLE(value);
+            shortLE(value >> 16);
+        }
+
+        void string(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.ISO_8859_1);
+            intLE(bytes.length);
+            write(bytes, 0, bytes.length);
+        }
+    }
+}
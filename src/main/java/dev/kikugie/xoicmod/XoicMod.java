@@ -1,9 +1,14 @@
 package dev.kikugie.xoicmod;
 
+import dev.kikugie.xoicmod.jukebox.ClickScheduler;
 import dev.kikugie.xoicmod.jukebox.JukeboxCommand;
+import dev.kikugie.xoicmod.jukebox.JukeboxJournal;
+import dev.kikugie.xoicmod.jukebox.JukeboxRestore;
+import dev.kikugie.xoicmod.jukebox.JukeboxStats;
 import net.fabricmc.api.ModInitializer;
 import net.fabricmc.fabric.api.client.command.v2.ClientCommandRegistrationCallback;
-import net.fabricmc.fabric.impl.command.client.ClientCommandInternals;
+import net.fabricmc.fabric.api.client.event.lifecycle.v1.ClientLifecycleEvents;
+import net.fabricmc.fabric.api.client.event.lifecycle.v1.ClientTickEvents;
 import org.slf4j.Logger;
 
 import static org.slf4j.LoggerFactory.*;
@@ -16,10 +21,12 @@ public class XoicMod implements ModInitializer {
     @Override
     public void onInitialize() {
         ClientCommandRegistrationCallback.EVENT.register(JukeboxCommand::register);
+        ClientLifecycleEvents.CLIENT_STOPPING.register(client -> JukeboxJournal.flush());
+        ClientTickEvents.END_CLIENT_TICK.register(ClickScheduler::tick);
+        ClientTickEvents.END_CLIENT_TICK.register(JukeboxStats::tick);
     }
 
-    @SuppressWarnings("UnstableApiUsage")
     public static void onJoin() {
-        ClientCommandInternals.executeCommand("jukebox reload");
+        JukeboxRestore.onJoin();
     }
 }
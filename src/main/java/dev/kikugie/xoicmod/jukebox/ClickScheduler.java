@@ -0,0 +1,70 @@
+package dev.kikugie.xoicmod.jukebox;
+
+import net.minecraft.client.MinecraftClient;
+import net.minecraft.client.network.ClientPlayerEntity;
+import net.minecraft.client.network.PlayerListEntry;
+import net.minecraft.screen.ScreenHandler;
+
+// Sends the clicks of a box over several ticks instead of bursting them from the packet handler
+public class ClickScheduler {
+    private static ScreenFillHandler screen = null;
+    private static int syncId = -1;
+    // Set while our own clicks are sent, so they aren't mistaken for manual ones
+    static boolean clicking = false;
+
+    static boolean isBusy() {
+        return syncId != -1;
+    }
+
+    static void configure() {
+        JukeboxManager.FILLER.budget = new ClickBudget(
+                JukeboxConfig.getInt("clicks.initial"),
+                JukeboxConfig.getInt("clicks.min"),
+                JukeboxConfig.getInt("clicks.max"));
+    }
+
+    // Sends the clicks queued in the filler
+    static void start(ScreenFillHandler handler) {
+        if (JukeboxManager.FILLER.budget == null) configure();
+        screen = handler;
+        syncId = handler.handler.syncId;
+        // Send the first batch right away, a box is only opened when the player wants it filled
+        tick(MinecraftClient.getInstance());
+    }
+
+    static void abort() {
+        if (!isBusy()) return;
+        syncId = -1;
+        JukeboxManager.onClicksAborted(JukeboxManager.FILLER.abort());
+    }
+
+    public static void tick(MinecraftClient client) {
+        if (!isBusy()) return;
+        ClientPlayerEntity player = client.player;
+        ScreenHandler handler = player == null ? null : player.currentScreenHandler;
+        if (handler != screen.handler || handler.syncId != syncId) {
+            abort();
+            return;
+        }
+
+        BoxFiller filler = JukeboxManager.FILLER;
+        int before = filler.clicks;
+        boolean settled;
+        clicking = true;
+        try {
+            settled = filler.tick(screen, System.currentTimeMillis(), roundTrip(client, player));
+        } finally {
+            clicking = false;
+        }
+        if (filler.clicks > before) JukeboxStats.onClicks(filler.clicks - before);
+        if (!settled) return;
+        syncId = -1;
+        JukeboxManager.onClicksSettled();
+    }
+
+    private static long roundTrip(MinecraftClient client, ClientPlayerEntity player) {
+        PlayerListEntry entry = client.getNetworkHandler() == null ? null : client.getNetworkHandler().getPlayerListEntry(player.getUuid());
+        // Never probe faster than once per tick
+        return Math.max(50, entry == null ? 0 : entry.getLatency());
+    }
+}
@@ -0,0 +1,111 @@
+package dev.kikugie.xoicmod.jukebox;
+
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.stream.Stream;
+
+// Compiled songs keyed by the hash of the NBS file, the mappings and the packing settings, so loading a song again skips parsing.
+// Entries are stored from the start of the song, a hit only rewrites the position. Touched on hits and evicted oldest first
+public class JukeboxCache {
+    private static final Logger LOGGER = LoggerFactory.getLogger(JukeboxCache.class);
+    private static final Path FOLDER = JukeboxFiles.CONFIG.resolve("cache");
+    private static final String EXTENSION = ".jukebox";
+
+    static boolean enabled() {
+        return JukeboxConfig.getLong("cache.max_bytes") > 0;
+    }
+
+    static String key(byte[] nbs) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(nbs);
+        digest.update((byte) 0);
+        digest.update(String.join("\n", JukeboxFiles.mappingIds).getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) JukeboxFormat.VERSION);
+        // Packing settings change the tracks the notes end up in
+        digest.update((byte) (JukeboxConfig.getBoolean("compile.pack_layers") ? 1 : 0));
+        digest.update((byte) JukeboxConfig.getInt("compile.max_units"));
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    static @Nullable byte[] get(String key) {
+        Path file = FOLDER.resolve(key + EXTENSION);
+        try {
+            if (!Files.exists(file)) return null;
+            byte[] data = Files.readAllBytes(file);
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            return data;
+        } catch (Exception e) {
+            LOGGER.warn("Failed to read cached song {}", key, e);
+            return null;
+        }
+    }
+
+    // A broken entry is removed, so the next load compiles the song again
+    static void invalidate(String key) {
+        try {
+            Files.deleteIfExists(FOLDER.resolve(key + EXTENSION));
+        } catch (Exception e) {
+            LOGGER.warn("Failed to remove cached song {}", key, e);
+        }
+    }
+
+    // Stores a copy of the encoded song with the position reset to the start
+    static void put(String key, byte[] encoded) {
+        long limit = JukeboxConfig.getLong("cache.max_bytes");
+        if (limit <= 0 || encoded.length > limit) return;
+        byte[] data = encoded.clone();
+        JukeboxFormat.setState(data, new JukeboxSong.State((byte) 0, JukeboxLayout.active().start()), false);
+        try {
+            Files.createDirectories(FOLDER);
+            Path file = FOLDER.resolve(key + EXTENSION);
+            Path temp = FOLDER.resolve(key + ".tmp");
+            Files.write(temp, data);
+            try {
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            evict(limit);
+        } catch (Exception e) {
+            LOGGER.warn("Failed to cache song {}", key, e);
+        }
+    }
+
+    private record Entry(Path file, long size, long used) {
+    }
+
+    // Removes the least recently used entries until the folder fits the limit
+    private static synchronized void evict(long limit) throws Exception {
+        List<Entry> entries = new ArrayList<>();
+        long total = 0;
+        try (Stream<Path> stream = Files.list(FOLDER)) {
+            for (Path file : (Iterable<Path>) stream::iterator) {
+                if (!file.getFileName().toString().endsWith(EXTENSION)) continue;
+                BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                entries.add(new Entry(file, attributes.size(), attributes.lastModifiedTime().toMillis()));
+                total += attributes.size();
+            }
+        }
+        if (total <= limit) return;
+
+        entries.sort((a, b) -> Long.compare(a.used, b.used));
+        for (Entry entry : entries) {
+            if (total <= limit) break;
+            Files.deleteIfExists(entry.file);
+            total -= entry.size;
+        }
+    }
+}
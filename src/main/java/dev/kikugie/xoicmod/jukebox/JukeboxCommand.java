@@ -11,12 +11,14 @@ import net.minecraft.item.Item;
 import net.minecraft.registry.RegistryEntryLookup;
 import net.minecraft.registry.RegistryKeys;
 import net.minecraft.text.Text;
+import org.jetbrains.annotations.Nullable;
 import org.lwjgl.PointerBuffer;
 import org.lwjgl.system.MemoryStack;
 import org.lwjgl.util.tinyfd.TinyFileDialogs;
 
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.function.Consumer;
 
@@ -24,6 +26,8 @@ import static net.fabricmc.fabric.api.client.command.v2.ClientCommandManager.lit
 import static net.fabricmc.fabric.api.client.command.v2.ClientCommandManager.argument;
 
 public class JukeboxCommand {
+    private static final int PAGE_SIZE = 10;
+
     public static void register(CommandDispatcher<FabricClientCommandSource> dispatcher, CommandRegistryAccess access) {
         RegistryEntryLookup<Item> lookup = access.getWrapperOrThrow(RegistryKeys.ITEM);
         dispatcher.register(literal("jukebox")
@@ -35,14 +39,57 @@ public class JukeboxCommand {
                 .executes(context -> reload(context, lookup)))
             .then(literal("unload")
                 .executes(JukeboxCommand::unload))
+            .then(literal("queue")
+                .then(literal("add")
+                    .executes(context -> open(location -> enqueue(context, location)))
+                    .then(argument("file", StringArgumentType.string())
+                        .executes(context -> enqueue(context, StringArgumentType.getString(context, "file")))))
+                .then(literal("list")
+                    .executes(JukeboxCommand::queue))
+                .then(literal("clear")
+                    .executes(JukeboxCommand::clearQueue)))
+            .then(literal("estimate")
+                .executes(context -> estimate(context, 0))
+                .then(argument("boxes", IntegerArgumentType.integer(1))
+                    .executes(context -> estimate(context, IntegerArgumentType.getInteger(context, "boxes")))))
+            .then(literal("stats")
+                .executes(JukeboxCommand::stats)
+                .then(literal("reset")
+                    .executes(JukeboxCommand::resetStats))
+                .then(literal("export")
+                    .executes(JukeboxCommand::exportStats)))
+            .then(literal("trace")
+                .then(literal("start")
+                    .executes(JukeboxCommand::startTrace))
+                .then(literal("stop")
+                    .executes(JukeboxCommand::stopTrace)))
+            .then(literal("library")
+                .then(literal("scan")
+                    .executes(JukeboxCommand::scan))
+                .then(literal("list")
+                    .executes(context -> list(context, 1))
+                    .then(argument("page", IntegerArgumentType.integer(1))
+                        .executes(context -> list(context, IntegerArgumentType.getInteger(context, "page")))))
+                .then(literal("load")
+                    .then(argument("song", IntegerArgumentType.integer(1))
+                        .executes(context -> pick(context, 0, JukeboxLayout.active().start()))
+                        .then(argument("track", IntegerArgumentType.integer(0, Byte.MAX_VALUE))
+                            .then(argument("offset", IntegerArgumentType.integer(0, Short.MAX_VALUE))
+                                .executes(context -> {
+                                    int track = IntegerArgumentType.getInteger(context, "track");
+                                    int offset = IntegerArgumentType.getInteger(context, "offset");
+                                    return pick(context, track, offset);
+                                }))))))
             .then(literal("load")
-                .executes(context -> open(location -> load(context, location, 0, 3)))
+                .executes(context -> open(location -> load(context, location, 0, JukeboxLayout.active().start())))
+                .then(literal("cancel")
+                    .executes(JukeboxCommand::cancel))
                 .then(argument("file", StringArgumentType.string())
                     .executes(context -> {
                         String location = StringArgumentType.getString(context, "file");
-                        return load(context, location, 0, 3);
+                        return load(context, location, 0, JukeboxLayout.active().start());
                     })
-                    .then(argument("track", IntegerArgumentType.integer(0, 5))
+                    .then(argument("track", IntegerArgumentType.integer(0, Byte.MAX_VALUE))
                         .then(argument("offset", IntegerArgumentType.integer(0, Short.MAX_VALUE))
                             .executes(context -> {
                                 String location = StringArgumentType.getString(context, "file");
@@ -50,7 +97,7 @@ public class JukeboxCommand {
                                 int offset = IntegerArgumentType.getInteger(context, "offset");
                                 return load(context, location, track, offset);
                             }))))
-                .then(argument("track", IntegerArgumentType.integer(0, 5))
+                .then(argument("track", IntegerArgumentType.integer(0, Byte.MAX_VALUE))
                     .then(argument("offset", IntegerArgumentType.integer(0, Short.MAX_VALUE))
                         .executes(context -> {
                             int track = IntegerArgumentType.getInteger(context, "track");
@@ -61,22 +108,147 @@ public class JukeboxCommand {
     }
 
     private static int pause(CommandContext<FabricClientCommandSource> context) {
-        if (JukeboxManager.current == null) error(context, "No song loaded");
-        else {
-            boolean state = !JukeboxManager.current.paused;
-            JukeboxManager.current.paused = state;
-            if (state) success(context, "Paused song filling");
+        if (JukeboxRestore.isPending()) success(context, "Song is still restoring, toggling pause once it's done");
+        JukeboxRestore.whenRestored(song -> {
+            if (song == null) {
+                error(context, "No song loaded");
+                return;
+            }
+            song.paused = !song.paused;
+            JukeboxFiles.updateSongState(song);
+            if (song.paused) success(context, "Paused song filling");
             else success(context, "Resumed song filling");
+        });
+        return 0;
+    }
+
+    private static int enqueue(CommandContext<FabricClientCommandSource> context, String location) {
+        try {
+            Path file = Path.of(location);
+            if (Files.notExists(file))
+                throw new IllegalArgumentException("File %s does not exist".formatted(location));
+            JukeboxPlaylist.add(file);
+            success(context, "Queued %s at position %d".formatted(file.getFileName(), JukeboxPlaylist.entries().size()));
+        } catch (Exception e) {
+            error(context, e);
+        }
+        return 0;
+    }
+
+    private static int queue(CommandContext<FabricClientCommandSource> context) {
+        try {
+            List<Path> entries = JukeboxPlaylist.entries();
+            if (entries.isEmpty()) {
+                error(context, "Queue is empty");
+                return 0;
+            }
+            StringBuilder text = new StringBuilder("Queued songs:");
+            for (int i = 0; i < entries.size(); i++)
+                text.append("\n  %d. %s".formatted(i + 1, entries.get(i).getFileName()));
+            success(context, text.toString());
+        } catch (Exception e) {
+            error(context, e);
+        }
+        return 0;
+    }
+
+    private static int clearQueue(CommandContext<FabricClientCommandSource> context) {
+        try {
+            JukeboxPlaylist.clear();
+            success(context, "Cleared song queue");
+        } catch (Exception e) {
+            error(context, e);
+        }
+        return 0;
+    }
+
+    private static int stats(CommandContext<FabricClientCommandSource> context) {
+        success(context, JukeboxStats.summary(JukeboxManager.current));
+        return 0;
+    }
+
+    // Materials for the next boxes, or for the rest of the current track without a count
+    private static int estimate(CommandContext<FabricClientCommandSource> context, int boxes) {
+        if (JukeboxRestore.isPending()) success(context, "Song is still restoring, estimating once it's done");
+        JukeboxRestore.whenRestored(song -> estimate(context, song, boxes));
+        return 0;
+    }
+
+    private static void estimate(CommandContext<FabricClientCommandSource> context, @Nullable JukeboxSong song, int boxes) {
+        try {
+            if (song == null) throw new IllegalStateException("No song loaded");
+            if (!song.hasNext()) throw new IllegalStateException("No boxes left in the song");
+            int from = song.box;
+            int to = boxes == 0 ? song.plan.trackEnd(from) : Math.min(song.plan.boxes(), from + boxes);
+            int[] items = new int[JukeboxManager.mappings.length];
+            JukeboxManager.materials(song, from, to, items);
+
+            StringBuilder text = new StringBuilder("Materials for %d boxes".formatted(to - from));
+            if (boxes == 0) text.append(" to the end of track %d".formatted(song.track()));
+            text.append(':');
+            int stacks = 0;
+            for (int id = 0; id < items.length; id++) {
+                if (items[id] == 0) continue;
+                Item item = JukeboxManager.mappings[id];
+                int size = item.getMaxCount();
+                stacks += (items[id] + size - 1) / size;
+                text.append("\n- %s: %d (%d stacks + %d), have %d".formatted(
+                    item.getName().getString(), items[id], items[id] / size, items[id] % size, JukeboxManager.available(id)));
+            }
+            text.append("\n%d stacks in %d shulker boxes, plus %d boxes to fill".formatted(stacks, (stacks + FillPlan.SLOTS - 1) / FillPlan.SLOTS, to - from));
+            text.append("\n").append(JukeboxStats.estimate(to - from, JukeboxManager.estimateClicks(song, from, to)));
+            success(context, text.toString());
+        } catch (Exception e) {
+            error(context, e);
+        }
+    }
+
+    private static int resetStats(CommandContext<FabricClientCommandSource> context) {
+        JukeboxStats.reset();
+        success(context, "Cleared fill stats");
+        return 0;
+    }
+
+    private static int exportStats(CommandContext<FabricClientCommandSource> context) {
+        Path file = JukeboxStats.export();
+        success(context, "Appending stats to %s".formatted(file.getFileName()));
+        return 0;
+    }
+
+    private static int startTrace(CommandContext<FabricClientCommandSource> context) {
+        try {
+            if (JukeboxTrace.isRecording()) throw new IllegalStateException("Already recording a trace");
+            JukeboxTrace.start();
+            success(context, "Recording inventory packets to %s".formatted(JukeboxTrace.FILE.getFileName()));
+        } catch (Exception e) {
+            error(context, e);
+        }
+        return 0;
+    }
+
+    private static int stopTrace(CommandContext<FabricClientCommandSource> context) {
+        try {
+            if (!JukeboxTrace.isRecording()) throw new IllegalStateException("No trace is being recorded");
+            JukeboxTrace.stop();
+            success(context, "Saved trace to %s".formatted(JukeboxTrace.FILE.getFileName()));
+        } catch (Exception e) {
+            error(context, e);
         }
         return 0;
     }
 
     private static int query(CommandContext<FabricClientCommandSource> context) {
         JukeboxSong song = JukeboxManager.current;
-        if (song == null) error(context, "No song loaded");
+        JukeboxFormat.Header saved = JukeboxRestore.header();
+        if (song == null && saved != null) {
+            StringBuilder text = new StringBuilder();
+            text.append("Current song position: [%d %d]".formatted(saved.state().track(), saved.state().offset()));
+            if (saved.paused()) text.append(" (paused)");
+            success(context, text.toString());
+        } else if (song == null) error(context, "No song loaded");
         else {
             StringBuilder text = new StringBuilder();
-            text.append("Current song position: [%d %d]".formatted(song.current.track(), song.current.offset()));
+            text.append("Current song position: [%d %d]".formatted(song.track(), song.offset()));
             if (JukeboxManager.current.paused) text.append(" (paused)");
             success(context, text.toString());
         }
@@ -85,6 +257,8 @@ public class JukeboxCommand {
 
     private static int unload(CommandContext<FabricClientCommandSource> context) {
         try {
+            JukeboxLoader.cancel();
+            JukeboxRestore.discard();
             JukeboxManager.current = null;
             JukeboxFiles.cleanUpSong();
             success(context, "Cleared song state");
@@ -94,16 +268,64 @@ public class JukeboxCommand {
         return 0;
     }
 
+    private static int scan(CommandContext<FabricClientCommandSource> context) {
+        success(context, "Scanning %s".formatted(JukeboxFiles.SONGS));
+        JukeboxLibrary.scan(JukeboxFiles.SONGS).whenComplete((result, e) -> JukeboxTasks.client(() -> {
+            if (e != null) error(context, e.getCause() instanceof Exception cause ? cause : new RuntimeException(e));
+            else if (result.failed() > 0) error(context, "Indexed %d songs, %d files could not be read".formatted(result.entries().size(), result.failed()));
+            else success(context, "Indexed %d songs, %d updated".formatted(result.entries().size(), result.parsed()));
+        }));
+        return 0;
+    }
+
+    private static int list(CommandContext<FabricClientCommandSource> context, int page) {
+        try {
+            List<JukeboxLibrary.Entry> entries = JukeboxLibrary.entries();
+            if (entries.isEmpty()) {
+                error(context, "Library is empty, put songs in %s and run /jukebox library scan".formatted(JukeboxFiles.SONGS));
+                return 0;
+            }
+
+            int pages = (entries.size() + PAGE_SIZE - 1) / PAGE_SIZE;
+            int start = (Math.min(page, pages) - 1) * PAGE_SIZE;
+            StringBuilder text = new StringBuilder("Songs (page %d/%d):".formatted(Math.min(page, pages), pages));
+            for (int i = start; i < Math.min(start + PAGE_SIZE, entries.size()); i++) {
+                JukeboxLibrary.Entry entry = entries.get(i);
+                text.append("\n  %d. %s [%d ticks, %d layers, %.2f t/s]".formatted(i + 1, entry.title(), entry.length(), entry.layers(), entry.tempo() / 100F));
+            }
+            success(context, text.toString());
+        } catch (Exception e) {
+            error(context, e);
+        }
+        return 0;
+    }
+
+    private static int pick(CommandContext<FabricClientCommandSource> context, int track, int offset) {
+        try {
+            List<JukeboxLibrary.Entry> entries = JukeboxLibrary.entries();
+            int index = IntegerArgumentType.getInteger(context, "song");
+            if (index > entries.size())
+                throw new IllegalArgumentException("No song #%d in the library".formatted(index));
+            return load(context, entries.get(index - 1).path().toString(), track, offset);
+        } catch (Exception e) {
+            error(context, e);
+        }
+        return 0;
+    }
+
     private static int reload(CommandContext<FabricClientCommandSource> context, RegistryEntryLookup<Item> lookup) {
         try {
-            JukeboxManager.mappings = JukeboxFiles.readMappings(lookup);
+            JukeboxConfig.reload();
+            JukeboxManager.setMappings(JukeboxFiles.readMappings(lookup));
             success(context, "Loaded mappings");
 
+            JukeboxRestore.discard();
             JukeboxSong saved = JukeboxFiles.readSongState();
             if (saved != null) {
                 JukeboxManager.current = saved;
                 success(context, "Loaded song state");
             }
+            JukeboxPlaylist.prefetch();
         } catch (Exception e) {
             error(context, e);
         }
@@ -120,39 +342,46 @@ public class JukeboxCommand {
                 throw new IllegalArgumentException("File %s does not exist".formatted(location));
 
             JukeboxSong.State state = new JukeboxSong.State((byte) track, (short) offset);
-            JukeboxManager.current = JukeboxFiles.parseNbs(file, state);
-            JukeboxFiles.writeSongState(JukeboxManager.current);
-            success(context, "Loaded song %s at [%d %d]".formatted(file, track, offset));
+            JukeboxLoader.load(context.getSource(), file, state);
         } catch (Exception e) {
             error(context, e);
         }
         return 0;
     }
 
+    private static int cancel(CommandContext<FabricClientCommandSource> context) {
+        if (JukeboxLoader.cancel()) success(context, "Cancelled song loading");
+        else error(context, "No song is being loaded");
+        return 0;
+    }
+
+    // The dialog blocks, so it runs off-thread and hands the result back to the client thread
     private static int open(Consumer<String> callback) {
-        CompletableFuture.supplyAsync(JukeboxCommand::open).thenAccept(callback);
+        CompletableFuture.supplyAsync(JukeboxCommand::open).thenAccept(location -> {
+            if (location != null) JukeboxTasks.client(() -> callback.accept(location));
+        });
         return 0;
     }
 
     private static String open() {
         PointerBuffer filters;
         try (MemoryStack stack = MemoryStack.stackPush()) {
-            filters = stack.mallocPointer(1);
+            filters = stack.mallocPointer(2);
             filters.put(stack.UTF8("*.nbs"));
+            filters.put(stack.UTF8("*.jukebox"));
             filters.flip();
             return TinyFileDialogs.tinyfd_openFileDialog(
                 "Select a song file",
                 FabricLoader.getInstance().getGameDir().toString(),
                 filters,
-                "OpenNBS files",
+                "OpenNBS or compiled songs",
                 false
             );
         }
     }
 
     private static void error(CommandContext<FabricClientCommandSource> context, Exception e) {
-        context.getSource().sendError(Text.of("[Jukebox] " + e.getMessage()));
-        JukeboxManager.LOGGER.error("Error while executing command", e);
+        error(context.getSource(), e);
     }
 
     private static void error(CommandContext<FabricClientCommandSource> context, String message) {
@@ -160,6 +389,15 @@ public class JukeboxCommand {
     }
 
     private static void success(CommandContext<FabricClientCommandSource> context, String message) {
-        context.getSource().sendFeedback(Text.of("[Jukebox] " + message));
+        success(context.getSource(), message);
+    }
+
+    static void error(FabricClientCommandSource source, Exception e) {
+        source.sendError(Text.of("[Jukebox] " + e.getMessage()));
+        JukeboxManager.LOGGER.error("Error while executing command", e);
+    }
+
+    static void success(FabricClientCommandSource source, String message) {
+        source.sendFeedback(Text.of("[Jukebox] " + message));
     }
 }
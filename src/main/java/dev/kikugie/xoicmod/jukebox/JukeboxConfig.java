@@ -0,0 +1,99 @@
+package dev.kikugie.xoicmod.jukebox;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+// Tunables stored in config.properties, missing keys fall back to the defaults
+public class JukeboxConfig {
+    private static final Logger LOGGER = LoggerFactory.getLogger(JukeboxConfig.class);
+    private static final Path FILE = JukeboxFiles.CONFIG.resolve("config.properties");
+    private static final Properties DEFAULTS = new Properties();
+    private static volatile Properties properties = null;
+
+    static {
+        // Milliseconds between journal fsyncs, 0 syncs after every shulker box
+        DEFAULTS.setProperty("journal.sync_interval", "1000");
+        // Compression of saved songs: deflate, packed or packed_deflate
+        DEFAULTS.setProperty("format.codec", "packed_deflate");
+        // Clicks sent per tick, adjusted between the bounds by how often the server corrects us
+        DEFAULTS.setProperty("clicks.initial", "8");
+        DEFAULTS.setProperty("clicks.min", "1");
+        DEFAULTS.setProperty("clicks.max", "64");
+        // Passes at fixing slots the server didn't apply before giving up on a box
+        DEFAULTS.setProperty("clicks.repairs", "3");
+        // Seconds between appending fill stats to stats.csv, 0 disables the export
+        DEFAULTS.setProperty("stats.export_interval", "0");
+        // Size limit of the compiled song cache in bytes, least recently loaded songs are removed first. 0 disables the cache
+        DEFAULTS.setProperty("cache.max_bytes", "67108864");
+        // Move notes from any layer to the lowest free track instead of keeping the layer layout
+        DEFAULTS.setProperty("compile.pack_layers", "false");
+        // Jukebox units of six tracks a song can spill into, notes that don't fit are dropped
+        DEFAULTS.setProperty("compile.max_units", "1");
+        // Shulker box order of the jukebox design, see JukeboxLayout. Applies to songs loaded afterwards
+        DEFAULTS.setProperty("layout.slots_per_box", "27");
+        DEFAULTS.setProperty("layout.boxes_per_group", "4");
+        DEFAULTS.setProperty("layout.stride", "4");
+        DEFAULTS.setProperty("layout.order", "4,2,3,1");
+    }
+
+    public static void reload() {
+        Properties loaded = new Properties(DEFAULTS);
+        try {
+            if (Files.exists(FILE)) try (Reader reader = Files.newBufferedReader(FILE, StandardCharsets.UTF_8)) {
+                loaded.load(reader);
+            }
+            else try (Writer writer = Files.newBufferedWriter(FILE, StandardCharsets.UTF_8)) {
+                DEFAULTS.store(writer, "Xoid jukebox settings");
+            }
+        } catch (Exception e) {
+            LOGGER.error("Failed to read config, using defaults", e);
+        }
+        properties = loaded;
+        JukeboxStats.setExportInterval(getLong("stats.export_interval"));
+        ClickScheduler.configure();
+
+        try {
+            JukeboxLayout.setActive(JukeboxLayout.parse(
+                getInt("layout.slots_per_box"),
+                getInt("layout.boxes_per_group"),
+                getInt("layout.stride"),
+                getString("layout.order")));
+        } catch (IllegalArgumentException e) {
+            LOGGER.error("Invalid layout, using the default one: {}", e.getMessage());
+            JukeboxLayout.setActive(JukeboxLayout.DEFAULT);
+        }
+    }
+
+    public static String getString(String key) {
+        Properties current = properties;
+        if (current == null) {
+            reload();
+            current = properties;
+        }
+        return current.getProperty(key).trim();
+    }
+
+    public static long getLong(String key) {
+        try {
+            return Long.parseLong(getString(key));
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Invalid value for {}, using default", key);
+            return Long.parseLong(DEFAULTS.getProperty(key));
+        }
+    }
+
+    public static int getInt(String key) {
+        return (int) getLong(key);
+    }
+
+    public static boolean getBoolean(String key) {
+        return Boolean.parseBoolean(getString(key));
+    }
+}
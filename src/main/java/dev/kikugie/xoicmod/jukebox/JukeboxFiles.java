@@ -7,31 +7,25 @@ import net.minecraft.registry.RegistryKey;
 import net.minecraft.registry.RegistryKeys;
 import net.minecraft.registry.entry.RegistryEntry;
 import net.minecraft.util.Identifier;
-import dev.kikugie.xoicmod.javanbs.NBSReader;
-import dev.kikugie.xoicmod.javanbs.NBSNote;
-import dev.kikugie.xoicmod.javanbs.NBSSong;
 import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
-import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.io.InputStream;
 import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Path;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
-import java.util.Arrays;
 import java.util.List;
-import java.util.zip.Deflater;
-import java.util.zip.Inflater;
 
 public class JukeboxFiles {
-    private static final Deflater COMPRESSOR = new Deflater(9);
-    private static final Inflater DECOMPRESSOR = new Inflater();
     private static final Logger LOGGER = LoggerFactory.getLogger(JukeboxFiles.class);
-    private static final Path CONFIG = FabricLoader.getInstance().getConfigDir().resolve("xoid_jukebox");
+    static final Path CONFIG = FabricLoader.getInstance().getConfigDir().resolve("xoid_jukebox");
+    static final Path SONGS = CONFIG.resolve("songs");
+    // One item id per line, despite the extension
+    private static final Path MAPPINGS = CONFIG.resolve("mappings.json");
     private static final List<String> DEFAULT_MAPPINGS = List.of(
         "white_stained_glass",
         "magenta_stained_glass",
@@ -60,30 +54,41 @@ public class JukeboxFiles {
         "magenta_concrete",
         "magenta_dye"
     );
+    // Item ids of the active mappings, part of the song cache key
+    static volatile List<String> mappingIds = DEFAULT_MAPPINGS;
+    // Resolved mappings and the modification time of the file they came from
+    private static Item[] resolved = null;
+    private static long resolvedModified = -1;
 
     static {
         try {
-            Files.createDirectories(CONFIG);
+            Files.createDirectories(SONGS);
         } catch (Exception e) {
             LOGGER.error("Failed to create config directory", e);
         }
     }
 
     public static Item[] readMappings(RegistryEntryLookup<Item> lookup) throws Exception {
-        Path mappingsFile = CONFIG.resolve("mappings.json");
+        long modified = Files.exists(MAPPINGS) ? Files.getLastModifiedTime(MAPPINGS).toMillis() : 0;
+        if (resolved != null && modified == resolvedModified) return resolved;
+
         List<String> mappings;
-        if (Files.exists(mappingsFile))
-            mappings = Files.readAllLines(mappingsFile, Charset.defaultCharset());
+        if (Files.exists(MAPPINGS))
+            mappings = Files.readAllLines(MAPPINGS, Charset.defaultCharset());
         else {
             writeDefaultMappings();
             mappings = DEFAULT_MAPPINGS;
+            modified = Files.getLastModifiedTime(MAPPINGS).toMillis();
         }
-        return decodeMappings(mappings, lookup);
+        Item[] items = decodeMappings(mappings, lookup);
+        mappingIds = List.copyOf(mappings);
+        resolved = items;
+        resolvedModified = modified;
+        return items;
     }
 
     private static void writeDefaultMappings() throws Exception {
-        Path mappingsFile = CONFIG.resolve("mappings.txt");
-        Files.write(mappingsFile, JukeboxFiles.DEFAULT_MAPPINGS, Charset.defaultCharset(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        Files.write(MAPPINGS, JukeboxFiles.DEFAULT_MAPPINGS, Charset.defaultCharset(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
     }
 
     private static Item[] decodeMappings(List<String> mappings, RegistryEntryLookup<Item> lookup) throws Exception {
@@ -97,99 +102,79 @@ public class JukeboxFiles {
     }
 
     public static JukeboxSong parseNbs(Path file, JukeboxSong.State state) throws Exception {
-        NBSSong song = NBSReader.readSong(file.toString());
+        return new JukeboxSong(trackReader().readTracks(file), state, JukeboxManager.mappings.length);
+    }
 
-        byte[][] notes = new byte[6][song.getHeader().getLength()];
-        for (byte[] bytes : notes) Arrays.fill(bytes, (byte) -1);
+    static TrackReader trackReader() {
+        return new TrackReader(Integer.MAX_VALUE, JukeboxConfig.getBoolean("compile.pack_layers"), Math.max(1, JukeboxConfig.getInt("compile.max_units")));
+    }
 
-        for (NBSNote note : song.getNotes()) {
-            if (note.getLayer() > 5 || note.getTick() >= song.getHeader().getLength()) continue;
-            notes[note.getLayer()][note.getTick()] = (byte) (note.getKey() - 33);
-        }
-        return new JukeboxSong(notes, state);
+    public static void updateSongState(JukeboxSong song) {
+        // Positions go through the write-behind journal, pausing forces them to disk
+        JukeboxJournal.append(song);
+        if (song.paused) JukeboxJournal.flush();
     }
 
-    public static void updateSongState(JukeboxSong song) throws Exception {
+    public static void cleanUpSong() throws Exception {
         Path songFile = CONFIG.resolve("current.jukebox");
-        if (!Files.exists(songFile)) {
-            writeSongState(song);
-            return;
-        }
+        JukeboxJournal.reset();
+        Files.deleteIfExists(songFile);
+    }
 
-        // First 4 bytes are assigned to the paused state, track and offset info
-        ByteBuffer buffer = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
-        buffer.put((byte) (song.paused ? 1 : 0));
-        buffer.put(song.current.track());
-        buffer.putShort(song.current.offset());
+    // Writes the encoded state next to the song file, so it can replace the current song with a rename later.
+    // Every call gets a new file, so a load that was cancelled mid-write can't touch the staged state of the next one
+    public static Path stageSongState(byte[] data) throws Exception {
+        Path staged = Files.createTempFile(CONFIG, "current", ".jukebox.tmp");
+        long start = System.nanoTime();
+        Files.write(staged, data, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        JukeboxStats.onSongWritten(start, data.length);
+        return staged;
+    }
 
-        // Modify only the required bytes
-        try (RandomAccessFile file = new RandomAccessFile(songFile.toFile(), "rwd")) {
-            file.write(buffer.array());
+    public static void commitSongState(Path staged) throws Exception {
+        Path songFile = CONFIG.resolve("current.jukebox");
+        JukeboxJournal.reset();
+        try {
+            Files.move(staged, songFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(staged, songFile, StandardCopyOption.REPLACE_EXISTING);
         }
     }
 
-    public static void cleanUpSong() throws Exception {
-        Path songFile = CONFIG.resolve("current.jukebox");
-        Files.deleteIfExists(songFile);
+    public static byte[] encodeSongState(JukeboxSong song) throws Exception {
+        NoteCodec codec = NoteCodecs.get(JukeboxConfig.getString("format.codec"));
+        byte[] data = JukeboxFormat.encode(song.tracks, song.state(), song.paused, codec);
+        LOGGER.info("Compressed song %d -> %d bytes".formatted(song.tracks.length * song.tracks[0].length(), data.length));
+        return data;
     }
 
-    public static void writeSongState(JukeboxSong song) throws Exception {
+    public static @Nullable JukeboxSong readSongState() throws Exception {
         Path songFile = CONFIG.resolve("current.jukebox");
-        // Flatten notes into one array
-        byte[] flattened = new byte[song.notes[0].length * song.notes.length];
-        for (int i = 0; i < song.notes.length; i++)
-            System.arraycopy(song.notes[i], 0, flattened, i * song.notes[0].length, song.notes[i].length);
-
-        // Compress notes
-        COMPRESSOR.setInput(flattened);
-        COMPRESSOR.finish();
-        byte[] compressed = new byte[flattened.length];
-        int length = COMPRESSOR.deflate(compressed);
-        COMPRESSOR.reset();
-        if (length == 0) throw new IllegalStateException("Failed to compress song");
-        LOGGER.info("Compressed song %d -> %d bytes".formatted(flattened.length, length));
-
-        // Write song state and compressed notes
-        ByteBuffer buffer = ByteBuffer.allocate(length + 4).order(ByteOrder.LITTLE_ENDIAN);
-        buffer.put((byte) (song.paused ? 1 : 0));
-        buffer.put(song.current.track());
-        buffer.putShort(song.current.offset());
-        buffer.put(compressed, 0, length);
-
-        Files.write(songFile, buffer.array(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        JukeboxJournal.compact(songFile);
+        if (!Files.exists(songFile)) return null;
+
+        JukeboxFormat.Decoded decoded = JukeboxFormat.decode(Files.readAllBytes(songFile));
+        LOGGER.info("Decompressed song %d -> %d bytes".formatted(decoded.encoded(), decoded.notes().length * decoded.notes()[0].length));
+        return songOf(decoded);
     }
 
-    public static @Nullable JukeboxSong readSongState() throws Exception {
+    // Only reads the position, the notes are decoded later with `readSongState`
+    public static @Nullable JukeboxFormat.Header readSongHeader() throws Exception {
         Path songFile = CONFIG.resolve("current.jukebox");
+        JukeboxJournal.compact(songFile);
         if (!Files.exists(songFile)) return null;
 
-        // Read track state and note data
-        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(songFile)).order(ByteOrder.LITTLE_ENDIAN);
-        boolean paused = buffer.get() == 1;
-        byte track = buffer.get();
-        short offset = buffer.getShort();
-        byte[] compressed = new byte[buffer.remaining()];
-        buffer.get(compressed);
-
-        // Decompress notes
-        ByteArrayOutputStream stream = new ByteArrayOutputStream();
-        DECOMPRESSOR.setInput(compressed);
-        int length = 0;
-        byte[] temp = new byte[1024];
-        while (!DECOMPRESSOR.finished()) {
-            int count = DECOMPRESSOR.inflate(temp);
-            stream.write(temp, 0, count);
-            length += count;
+        byte[] header;
+        try (InputStream stream = Files.newInputStream(songFile)) {
+            header = stream.readNBytes(4);
         }
-        DECOMPRESSOR.reset();
-        if (length % 6 != 0) throw new IllegalStateException("Invalid song length %d".formatted(length));
-        LOGGER.info("Decompressed song %d -> %d bytes".formatted(compressed.length, length));
-
-        // Unwrap notes into 6 tracks
-        byte[] flattened = stream.toByteArray();
-        byte[][] notes = new byte[6][length / 6];
-        for (int i = 0; i < notes.length; i++)
-            System.arraycopy(flattened, i * notes[0].length, notes[i], 0, notes[i].length);
-        return new JukeboxSong(notes, new JukeboxSong.State(track, offset), paused);
+        if (header.length < 4) throw new IllegalStateException("Song file is truncated");
+        return JukeboxFormat.header(header);
+    }
+
+    static JukeboxSong songOf(JukeboxFormat.Decoded decoded) throws Exception {
+        TrackStorage[] tracks = new TrackStorage[decoded.notes().length];
+        for (int i = 0; i < tracks.length; i++) tracks[i] = TrackStorage.of(decoded.notes()[i]);
+        return new JukeboxSong(tracks, decoded.state(), decoded.paused(), JukeboxManager.mappings.length);
     }
 }
@@ -0,0 +1,162 @@
+package dev.kikugie.xoicmod.jukebox;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+// Append-only log of song positions, written by a background thread and folded into current.jukebox on startup.
+// Each record is the 4 state bytes of the song file followed by their CRC32
+public class JukeboxJournal {
+    private static final Logger LOGGER = LoggerFactory.getLogger(JukeboxJournal.class);
+    private static final Path FILE = JukeboxFiles.CONFIG.resolve("current.journal");
+    static final int RECORD = 8;
+    private static final int NONE = -1;
+
+    // Guards the pending state, held only for short updates
+    private static final Object LOCK = new Object();
+    // Guards the file, held while writing so records land in the order they were taken
+    private static final Object IO = new Object();
+
+    private static int pending = NONE;
+    private static boolean unsynced = false;
+    private static long lastSync = 0;
+    private static FileChannel channel = null;
+    private static Thread writer = null;
+
+    public static void append(JukeboxSong song) {
+        synchronized (LOCK) {
+            // Consecutive updates are coalesced, only the latest position is written
+            pending = pack(song);
+            if (writer == null) {
+                writer = new Thread(JukeboxJournal::run, "Jukebox Journal");
+                writer.setDaemon(true);
+                writer.start();
+            }
+            LOCK.notifyAll();
+        }
+    }
+
+    // Writes the pending position and syncs it to disk on the calling thread
+    public static void flush() {
+        synchronized (IO) {
+            try {
+                drain(true);
+            } catch (Exception e) {
+                LOGGER.error("Failed to flush song journal", e);
+            }
+        }
+    }
+
+    // Drops the journal when the song file is replaced or removed
+    public static void reset() throws Exception {
+        synchronized (IO) {
+            synchronized (LOCK) {
+                pending = NONE;
+                unsynced = false;
+            }
+            close();
+            Files.deleteIfExists(FILE);
+        }
+    }
+
+    // Applies the last valid record to the song file header and removes the journal
+    public static void compact(Path songFile) throws Exception {
+        synchronized (IO) {
+            drain(true);
+            close();
+            if (!Files.exists(FILE)) return;
+
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(FILE)).order(ByteOrder.LITTLE_ENDIAN);
+            int state = NONE;
+            while (buffer.remaining() >= RECORD) {
+                int record = buffer.getInt();
+                if (buffer.getInt() != checksum(record)) break;
+                state = record;
+            }
+
+            if (state != NONE && Files.exists(songFile)) try (RandomAccessFile file = new RandomAccessFile(songFile.toFile(), "rwd")) {
+                file.write(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(state).array());
+            }
+            Files.delete(FILE);
+        }
+    }
+
+    private static void run() {
+        while (true) {
+            try {
+                long interval = Math.max(0, JukeboxConfig.getLong("journal.sync_interval"));
+                synchronized (LOCK) {
+                    while (pending == NONE) {
+                        long wait = unsynced ? lastSync + interval - System.currentTimeMillis() : 0;
+                        if (unsynced && wait <= 0) break;
+                        LOCK.wait(Math.max(wait, 0));
+                    }
+                }
+                synchronized (IO) {
+                    drain(System.currentTimeMillis() - lastSync >= interval);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                LOGGER.error("Failed to write song journal", e);
+            }
+        }
+    }
+
+    // Must hold IO
+    private static void drain(boolean sync) throws Exception {
+        long start = System.nanoTime();
+        int state;
+        synchronized (LOCK) {
+            state = pending;
+            pending = NONE;
+        }
+
+        if (state != NONE) {
+            if (channel == null)
+                channel = FileChannel.open(FILE, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            ByteBuffer buffer = ByteBuffer.allocate(RECORD).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(state).putInt(checksum(state)).flip();
+            while (buffer.hasRemaining()) channel.write(buffer);
+            synchronized (LOCK) {
+                unsynced = true;
+            }
+        }
+
+        boolean synced = sync && channel != null;
+        if (synced) {
+            channel.force(false);
+            synchronized (LOCK) {
+                unsynced = false;
+                lastSync = System.currentTimeMillis();
+            }
+        }
+        if (state != NONE || synced) JukeboxStats.onJournalWritten(start);
+    }
+
+    // Must hold IO
+    private static void close() throws Exception {
+        if (channel == null) return;
+        channel.close();
+        channel = null;
+    }
+
+    // Same layout as the first 4 bytes of the song file when written little-endian
+    private static int pack(JukeboxSong song) {
+        return (song.paused ? 1 : 0) | (song.track() & 0xFF) << 8 | (song.offset() & 0xFFFF) << 16;
+    }
+
+    private static int checksum(int state) {
+        CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(state).array());
+        return (int) crc.getValue();
+    }
+}
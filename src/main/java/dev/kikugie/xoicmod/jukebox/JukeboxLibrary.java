@@ -0,0 +1,148 @@
+package dev.kikugie.xoicmod.jukebox;
+
+import dev.kikugie.xoicmod.javanbs.NBSHeader;
+import dev.kikugie.xoicmod.javanbs.NBSReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+
+// Catalog of songs in the songs folder, built from NBS headers only and cached in library.tsv
+public class JukeboxLibrary {
+    private static final Logger LOGGER = LoggerFactory.getLogger(JukeboxLibrary.class);
+    private static final Path CATALOG = JukeboxFiles.CONFIG.resolve("library.tsv");
+    private static volatile List<Entry> entries = null;
+
+    public record Entry(Path path, long size, long modified, String name, String author, int length, int layers, int tempo) {
+        String title() {
+            String title = name.isBlank() ? path.getFileName().toString() : name;
+            return author.isBlank() ? title : "%s - %s".formatted(title, author);
+        }
+    }
+
+    public record ScanResult(List<Entry> entries, int parsed, int failed) {
+    }
+
+    public static List<Entry> entries() throws IOException {
+        List<Entry> current = entries;
+        if (current == null) entries = current = readCatalog();
+        return current;
+    }
+
+    public static CompletableFuture<ScanResult> scan(Path folder) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return scanImpl(folder);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }, JukeboxWorkers.POOL);
+    }
+
+    private static ScanResult scanImpl(Path folder) throws IOException {
+        Map<Path, Entry> known = new HashMap<>();
+        for (Entry entry : entries()) known.put(entry.path(), entry);
+
+        List<Path> files;
+        try (Stream<Path> stream = Files.walk(folder)) {
+            files = stream.filter(it -> it.getFileName().toString().endsWith(".nbs") && Files.isRegularFile(it)).toList();
+        }
+
+        // Unchanged files are taken from the catalog, others are read in parallel
+        List<Entry> result = new ArrayList<>(files.size());
+        List<CompletableFuture<Entry>> pending = new ArrayList<>();
+        for (Path file : files) {
+            Path path = file.toAbsolutePath().normalize();
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            long size = attributes.size();
+            long modified = attributes.lastModifiedTime().toMillis();
+
+            Entry cached = known.get(path);
+            if (cached != null && cached.size() == size && cached.modified() == modified) result.add(cached);
+            else pending.add(CompletableFuture.supplyAsync(() -> readEntry(path, size, modified), JukeboxWorkers.POOL));
+        }
+
+        int failed = 0;
+        for (CompletableFuture<Entry> future : pending) {
+            Entry entry = future.join();
+            if (entry != null) result.add(entry);
+            else failed++;
+        }
+
+        // Entries outside of the scanned folder are kept
+        for (Entry entry : known.values())
+            if (!entry.path().startsWith(folder.toAbsolutePath().normalize())) result.add(entry);
+        result.sort(Comparator.comparing(Entry::title, String.CASE_INSENSITIVE_ORDER));
+
+        List<Entry> snapshot = List.copyOf(result);
+        writeCatalog(snapshot);
+        entries = snapshot;
+        return new ScanResult(snapshot, pending.size() - failed, failed);
+    }
+
+    private static Entry readEntry(Path path, long size, long modified) {
+        try {
+            NBSHeader header = NBSReader.readHeader(path.toString());
+            return new Entry(path, size, modified, header.getName(), header.getAuthor(), header.getLength(), header.getLayerCount(), header.getTempo());
+        } catch (Exception e) {
+            LOGGER.warn("Failed to read song header of {}", path, e);
+            return null;
+        }
+    }
+
+    private static List<Entry> readCatalog() throws IOException {
+        if (!Files.exists(CATALOG)) return List.of();
+        List<Entry> result = new ArrayList<>();
+        for (String line : Files.readAllLines(CATALOG, StandardCharsets.UTF_8)) {
+            String[] parts = line.split("\t", -1);
+            if (parts.length != 8) continue;
+            try {
+                result.add(new Entry(
+                    Path.of(parts[0]),
+                    Long.parseLong(parts[1]),
+                    Long.parseLong(parts[2]),
+                    parts[6],
+                    parts[7],
+                    Integer.parseInt(parts[3]),
+                    Integer.parseInt(parts[4]),
+                    Integer.parseInt(parts[5])
+                ));
+            } catch (Exception e) {
+                LOGGER.warn("Skipping invalid catalog line: {}", line);
+            }
+        }
+        return List.copyOf(result);
+    }
+
+    private static void writeCatalog(List<Entry> entries) throws IOException {
+        List<String> lines = new ArrayList<>(entries.size());
+        for (Entry entry : entries)
+            lines.add(String.join("\t",
+                entry.path().toString(),
+                Long.toString(entry.size()),
+                Long.toString(entry.modified()),
+                Integer.toString(entry.length()),
+                Integer.toString(entry.layers()),
+                Integer.toString(entry.tempo()),
+                sanitize(entry.name()),
+                sanitize(entry.author())
+            ));
+        Files.write(CATALOG, lines, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    private static String sanitize(String value) {
+        return value.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+}
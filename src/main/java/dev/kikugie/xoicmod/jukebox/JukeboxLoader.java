@@ -0,0 +1,182 @@
+package dev.kikugie.xoicmod.jukebox;
+
+import net.fabricmc.fabric.api.client.command.v2.FabricClientCommandSource;
+import net.minecraft.text.Text;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+
+// Runs the parse -> compile -> compress -> persist stages off-thread and publishes the song on the client thread
+public class JukeboxLoader {
+    private static final Logger LOGGER = LoggerFactory.getLogger(JukeboxLoader.class);
+    private static volatile Task active = null;
+
+    public enum Stage {
+        PARSE("Parsing"),
+        COMPILE("Compiling"),
+        COMPRESS("Compressing"),
+        PERSIST("Saving");
+
+        final String title;
+
+        Stage(String title) {
+            this.title = title;
+        }
+    }
+
+    public static boolean isLoading() {
+        return active != null;
+    }
+
+    static void load(FabricClientCommandSource source, Path file, JukeboxSong.State state) {
+        Task running = active;
+        if (running != null)
+            throw new IllegalStateException("Already loading %s, use /jukebox load cancel to stop it".formatted(running.file.getFileName()));
+
+        Task task = new Task(source, file, state);
+        active = task;
+        CompletableFuture.runAsync(task::run, JukeboxWorkers.POOL);
+    }
+
+    static boolean cancel() {
+        Task task = active;
+        if (task == null) return false;
+        task.cancelled = true;
+        active = null;
+        return true;
+    }
+
+    private static final class Task {
+        final FabricClientCommandSource source;
+        final Path file;
+        final JukeboxSong.State state;
+        volatile boolean cancelled = false;
+
+        Task(FabricClientCommandSource source, Path file, JukeboxSong.State state) {
+            this.source = source;
+            this.file = file;
+            this.state = state;
+        }
+
+        void run() {
+            try {
+                if (file.toString().endsWith(".jukebox")) {
+                    runCompiled();
+                    return;
+                }
+                stage(Stage.PARSE);
+                byte[] nbs = Files.readAllBytes(file);
+                String key = JukeboxCache.enabled() ? JukeboxCache.key(nbs) : null;
+                byte[] cached = key == null ? null : JukeboxCache.get(key);
+                if (cached != null && runCached(key, cached)) return;
+                TrackReader reader = JukeboxFiles.trackReader();
+                TrackStorage[] tracks = reader.readTracks(nbs);
+                checkTrack(tracks.length);
+                String layout = "%d layers on %d tracks".formatted(reader.layers, tracks.length);
+                if (reader.droppedLayers > 0) layout += ", %d notes didn't fit".formatted(reader.droppedLayers);
+
+                stage(Stage.COMPILE);
+                JukeboxSong song = new JukeboxSong(tracks, state, JukeboxManager.mappings.length);
+
+                stage(Stage.COMPRESS);
+                byte[] data = JukeboxFiles.encodeSongState(song);
+                if (key != null) JukeboxCache.put(key, data);
+
+                Path staged = persist(data);
+                String details = layout;
+                JukeboxTasks.client(() -> publish(song, staged, details));
+            } catch (CancellationException ignored) {
+            } catch (Exception e) {
+                JukeboxTasks.client(() -> fail(e));
+            }
+        }
+
+        // Songs from the batch compiler only need the position rewritten, the notes are stored as they are
+        private void runCompiled() throws Exception {
+            try {
+                stage(Stage.PARSE);
+                byte[] data = Files.readAllBytes(file);
+                JukeboxFormat.setState(data, state, false);
+                JukeboxSong song = JukeboxFiles.songOf(JukeboxFormat.decode(data));
+                checkTrack(song.tracks.length);
+
+                Path staged = persist(data);
+                JukeboxTasks.client(() -> publish(song, staged, "%d tracks".formatted(song.tracks.length)));
+            } catch (CancellationException ignored) {
+            } catch (Exception e) {
+                JukeboxTasks.client(() -> fail(e));
+            }
+        }
+
+        // Cached songs are decoded like compiled ones. Returns false if the entry is broken and the song has to be parsed
+        private boolean runCached(String key, byte[] data) throws Exception {
+            JukeboxSong song;
+            try {
+                JukeboxFormat.setState(data, state, false);
+                song = JukeboxFiles.songOf(JukeboxFormat.decode(data));
+            } catch (CancellationException e) {
+                throw e;
+            } catch (Exception e) {
+                LOGGER.warn("Discarding cached song {}", key, e);
+                JukeboxCache.invalidate(key);
+                return false;
+            }
+            checkTrack(song.tracks.length);
+
+            Path staged = persist(data);
+            JukeboxTasks.client(() -> publish(song, staged, "%d tracks, cached".formatted(song.tracks.length)));
+            return true;
+        }
+
+        // Track arguments go up to the largest possible song, the actual count is only known after reading it
+        private void checkTrack(int tracks) {
+            if (state.track() >= tracks)
+                throw new IllegalArgumentException("Track %d is out of range, the song has %d tracks".formatted(state.track(), tracks));
+        }
+
+        private void stage(Stage stage) {
+            if (cancelled) throw new CancellationException();
+            String message = "[Jukebox] %s %s (%d/%d)".formatted(stage.title, file.getFileName(), stage.ordinal() + 1, Stage.values().length);
+            JukeboxTasks.client(() -> {
+                if (!cancelled) source.getPlayer().sendMessage(Text.of(message), true);
+            });
+        }
+
+        // Every task stages into its own file, a cancelled one removes it so it can't be published
+        private Path persist(byte[] data) throws Exception {
+            stage(Stage.PERSIST);
+            Path staged = JukeboxFiles.stageSongState(data);
+            if (cancelled) {
+                Files.deleteIfExists(staged);
+                throw new CancellationException();
+            }
+            return staged;
+        }
+
+        // Runs on the client thread, so the song can't be swapped while a shulker box is being filled
+        private void publish(JukeboxSong song, Path staged, String details) {
+            try {
+                if (cancelled || active != this) {
+                    Files.deleteIfExists(staged);
+                    return;
+                }
+                JukeboxFiles.commitSongState(staged);
+                JukeboxRestore.discard();
+                JukeboxManager.current = song;
+                active = null;
+                JukeboxCommand.success(source, "Loaded song %s at [%d %d]: %d boxes, %s".formatted(file, state.track(), state.offset(), song.plan.boxes(), details));
+            } catch (Exception e) {
+                fail(e);
+            }
+        }
+
+        private void fail(Exception e) {
+            if (active == this) active = null;
+            JukeboxCommand.error(source, e);
+        }
+    }
+}
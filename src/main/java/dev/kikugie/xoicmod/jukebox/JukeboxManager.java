@@ -1,44 +1,100 @@
 package dev.kikugie.xoicmod.jukebox;
 
-import com.google.common.collect.Lists;
-import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
-import it.unimi.dsi.fastutil.ints.Int2ObjectArrayMap;
-import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
-import it.unimi.dsi.fastutil.objects.Object2IntArrayMap;
+import it.unimi.dsi.fastutil.objects.Reference2IntOpenHashMap;
 import net.minecraft.client.MinecraftClient;
 import net.minecraft.client.gui.screen.ingame.ShulkerBoxScreen;
 import net.minecraft.client.network.ClientPlayerEntity;
-import net.minecraft.client.network.ClientPlayerInteractionManager;
 import net.minecraft.entity.player.PlayerInventory;
-import net.minecraft.inventory.Inventory;
 import net.minecraft.item.Item;
 import net.minecraft.item.ItemStack;
 import net.minecraft.screen.ScreenHandler;
 import net.minecraft.screen.slot.Slot;
-import net.minecraft.screen.slot.SlotActionType;
 import net.minecraft.text.Text;
-import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
-import java.util.Map;
 
 @SuppressWarnings("DataFlowIssue")
 public class JukeboxManager {
     static final Logger LOGGER = LoggerFactory.getLogger(JukeboxManager.class);
+    // Main inventory only, the shulker box screen doesn't expose armor and offhand slots
+    static final int INVENTORY = 36;
     static Item[] mappings = new Item[0];
     static JukeboxSong current = null;
 
+    // Per-mapping tables, rebuilt in `setMappings`. Duplicate items share the id of their first mapping
+    private static final Reference2IntOpenHashMap<Item> IDS = new Reference2IntOpenHashMap<>();
+    private static int[] canonical = new int[0];
+    private static String[] abbreviations = new String[0];
+
+    // Scratch state for the current box, only touched on the client thread
+    static final BoxFiller FILLER = new BoxFiller(INVENTORY);
+    private static final ScreenFillHandler SCREEN = new ScreenFillHandler();
+    private static final int[] NOTES = new int[FillPlan.SLOTS];
+    private static int[] upcoming = new int[0];
+    // Mapped items in the player inventory, updated from packets and our own clicks
+    private static final InventoryIndex INDEX = FILLER.index;
+    private static PlayerInventory indexed = null;
+    // Box whose clicks are being sent by the scheduler
+    private static JukeboxSong filling = null;
+    // Box whose clicks all went out before its screen closed, checked against the plan when a box opens next
+    private static JukeboxSong unconfirmed = null;
+    private static boolean advanced = false;
+    private static final StringBuilder LOG = new StringBuilder();
+
+    static {
+        IDS.defaultReturnValue(-1);
+    }
+
+    static void setMappings(Item[] items) {
+        IDS.clear();
+        int[] ids = new int[items.length];
+        String[] names = new String[items.length];
+        int width = 0;
+        for (int i = 0; i < items.length; i++) {
+            int id = IDS.getInt(items[i]);
+            if (id == -1) IDS.put(items[i], id = i);
+            ids[i] = id;
+
+            StringBuilder name = new StringBuilder();
+            for (char c : items[i].getName().getString().toCharArray())
+                if (Character.isUpperCase(c))
+                    name.append(c);
+            names[i] = name.toString();
+            width = Math.max(width, names[i].length());
+        }
+
+        for (int i = 0; i < names.length; i++)
+            names[i] += " ".repeat(width - names[i].length());
+        canonical = ids;
+        abbreviations = names;
+        upcoming = new int[items.length];
+        FILLER.reset(items.length);
+        mappings = items;
+    }
+
     public static void handle(ShulkerBoxScreen screen) {
+        JukeboxTrace.onOpen();
+        // The previous box can't be finished once another screen has opened
+        ClickScheduler.abort();
+        if (current == null && JukeboxRestore.isPending()) {
+            // The song restored on join is decoded now, this box is filled once it's done
+            if (!JukeboxRestore.header().paused()) JukeboxRestore.start();
+            return;
+        }
         if (current != null && !current.paused) handleShulkerBox(screen, current);
     }
 
     private static void handleShulkerBox(ShulkerBoxScreen screen, JukeboxSong song) {
+        // Checked before the song moves, restoring would rewind past the last filled box
+        if (song.mappings != mappings.length) {
+            error("Song was compiled for %d mappings, %d are loaded".formatted(song.mappings, mappings.length));
+            return;
+        }
         try {
-            handleImpl(screen, song);
+            if (unconfirmed == song) verifyUnconfirmed(screen, song);
+            else handleImpl(screen, song);
         } catch (Exception e) {
             song.restore();
             error(e.getMessage());
@@ -46,162 +102,212 @@ public class JukeboxManager {
         }
     }
 
+    // A box that matches is finished right away, anything else goes through the repair passes
+    private static void verifyUnconfirmed(ShulkerBoxScreen screen, JukeboxSong song) throws Exception {
+        unconfirmed = null;
+        SCREEN.attach(screen.getScreenHandler());
+        filling = song;
+        FILLER.repairs = 0;
+        if (repair()) return;
+        filling = null;
+        finishBox(song);
+    }
+
     private static void handleImpl(ShulkerBoxScreen screen, JukeboxSong song) throws Exception {
-        JukeboxSong.State state = song.current;
-        JukeboxSong.Selection next = song.next();
-        verifyInventory(next.items());
+        byte track = song.track();
+        short offset = song.offset();
+        int box = song.next();
+        boolean advances = song.plan.advances(box);
+        for (int slot = 0; slot < FillPlan.SLOTS; slot++) {
+            int note = song.plan.note(box, slot);
+            NOTES[slot] = note;
+            FILLER.notes[slot] = canonical[note];
+        }
+        SCREEN.attach(screen.getScreenHandler());
+        FILLER.begin(SCREEN);
+
+        log(track, offset);
+        filling = song;
+        advanced = advances;
+        ClickScheduler.start(SCREEN);
+    }
+
+    static void onClicksSettled() {
+        JukeboxSong song = filling;
+        // Clicks are applied to the client inventory right away, so only the touched stacks need a refresh
+        PlayerInventory inventory = MinecraftClient.getInstance().player.getInventory();
+        PlacementPlanner planner = FILLER.planner;
+        for (int i = 0; i < planner.clicks; i++) {
+            int slot = planner.slot[i];
+            if (planner.action[i] == PlacementPlanner.SWAP) refresh(inventory, planner.button[i]);
+            else if (slot >= FillPlan.SLOTS) refresh(inventory, slot - FillPlan.SLOTS);
+        }
+        // Unloaded while the clicks were still going out
+        if (song == null || song != current) {
+            filling = null;
+            return;
+        }
+
+        try {
+            if (repair()) return;
+            JukeboxStats.onConfirmed();
+            filling = null;
+            finishBox(song);
+        } catch (Exception e) {
+            filling = null;
+            song.restore();
+            error(e.getMessage());
+            LOGGER.error("Failed to finish box", e);
+        }
+    }
 
-        log(state, next);
-        Map<Integer, List<Integer>> queue = composeMoveActions(next.items());
-        moveItems(screen.getScreenHandler(), queue);
+    // Schedules clicks for the slots that differ from the plan, returns false when the box matches
+    private static boolean repair() {
+        if (!FILLER.repair(SCREEN, JukeboxConfig.getInt("clicks.repairs"))) return false;
+        ClickScheduler.start(SCREEN);
+        return true;
+    }
 
-        if (next.advanced()) song.paused = true;
+    // With every click sent the box may well be full, but it's only saved once it's confirmed
+    static void onClicksAborted(boolean sent) {
+        JukeboxSong song = filling;
+        filling = null;
+        INDEX.dirty = true;
+        if (song == null || song != current) return;
+        if (sent) {
+            unconfirmed = song;
+            error("Screen closed before the server confirmed the box, open it again to check it");
+            return;
+        }
+        song.restore();
+        error("Screen closed before the box was filled, refill it");
+    }
+
+    private static void finishBox(JukeboxSong song) throws Exception {
+        if (advanced) song.paused = true;
         JukeboxFiles.updateSongState(song);
+        JukeboxStats.onSaved();
 
-        if (!next.advanced()) return;
-        if (song.hasNext()) error("Advanced to track %d, pausing".formatted(song.current.track()));
+        if (!advanced) {
+            if (!hasItemsFor(song, 1)) error("Not enough items for the next box");
+            return;
+        }
+        if (song.hasNext()) error("Advanced to track %d, pausing".formatted(song.track()));
         else {
             error("Finished reading song data, resetting");
             JukeboxFiles.cleanUpSong();
             current = null;
+            JukeboxPlaylist.next();
         }
     }
 
-    private static void moveItems(ScreenHandler handler, Map<Integer, List<Integer>> queue) {
-        int sync = handler.syncId;
-        ClientPlayerEntity player = MinecraftClient.getInstance().player;
-        ClientPlayerInteractionManager interaction = MinecraftClient.getInstance().interactionManager;
-
-        // Reassign the queue to have slot ids instead of indexes
-        Map<Integer, Integer> mappings = new Int2IntOpenHashMap();
-        Map<Integer, List<Integer>> slots = new Int2ObjectOpenHashMap<>();
-        for (Slot slot : handler.slots)
-            if (slot.inventory instanceof PlayerInventory) {
-                List<Integer> destinations = queue.get(slot.getIndex());
-                if (destinations != null) slots.put(slot.id, destinations);
-            } else mappings.put(slot.getIndex(), slot.id);
-
-        // Move items to slots
-        for (Map.Entry<Integer, List<Integer>> entry : slots.entrySet()) {
-            int source = entry.getKey();
-            interaction.clickSlot(sync, source, 0, SlotActionType.PICKUP, player);
-            for (int dest : entry.getValue())
-                interaction.clickSlot(sync, mappings.get(dest), 1, SlotActionType.PICKUP, player);
-            interaction.clickSlot(sync, source, 0, SlotActionType.PICKUP, player);
-        }
-    }
-
-    private static Map<Integer, List<Integer>> composeMoveActions(Item[] notes) {
-        // Make a list to get `indexOf` and to make reassigning items safe
-        List<Item> copy = Lists.newArrayList(notes);
-        // Represents inventory slots assigned to the positions in the shulker box the item has to go to
-        Map<Integer, List<Integer>> queue = new Int2ObjectArrayMap<>();
-
-        // Filter non-empty and required items to reduce sorting
-        Inventory inventory = MinecraftClient.getInstance().player.getInventory();
-        List<SlotStack> candidates = Lists.newArrayList();
-        for (int i = 0; i < inventory.size(); i++) {
-            ItemStack stack = inventory.getStack(i);
-            Item item = stack.getItem();
-            if (stack.isEmpty() || !copy.contains(item)) continue;
-
-            candidates.add(new SlotStack(i, stack));
-        }
-        candidates.sort(null);
-
-        // Get slots for matching items, preferring larger stacks for fewer clicks
-        for (SlotStack stack : candidates.reversed()) {
-            Item item = stack.getItem();
-            int count = stack.getCount();
-            int index = copy.indexOf(item);
-            List<Integer> destinations = Lists.newArrayList();
-            while (index != -1 && count > 0) {
-                destinations.add(index);
-                copy.set(index, null);
-                count--;
-                index = copy.indexOf(item);
-            }
+    // Whether the inventory holds everything for the next `boxes` boxes of the song
+    static boolean hasItemsFor(JukeboxSong song, int boxes) {
+        InventoryIndex index = syncIndex();
+        Arrays.fill(upcoming, 0);
+        materials(song, song.box, Math.min(song.plan.boxes(), song.box + boxes), upcoming);
+        return index.covers(upcoming);
+    }
 
-            if (!destinations.isEmpty())
-                queue.put(stack.slot, destinations);
+    // Items the boxes from `from` up to `to` take, added to `items` by canonical id
+    static void materials(JukeboxSong song, int from, int to, int[] items) {
+        if (song.mappings != mappings.length)
+            throw new IllegalStateException("Song was compiled for %d mappings, %d are loaded".formatted(song.mappings, mappings.length));
+        song.plan.count(from, to, items);
+        // Duplicates always point at an earlier mapping, so one pass moves every count to its canonical id
+        for (int id = 0; id < items.length; id++) {
+            if (canonical[id] == id) continue;
+            items[canonical[id]] += items[id];
+            items[id] = 0;
         }
-        return queue;
     }
 
-    private static void verifyInventory(Item[] notes) throws Exception {
-        Inventory inventory = MinecraftClient.getInstance().player.getInventory();
-        // Count how much of each item is required
-        Map<Item, Integer> required = new Object2IntArrayMap<>(notes.length);
-        for (Item it : notes) required.put(it, required.getOrDefault(it, 0) + 1);
-
-        // Scan the player inventory, decreasing counts for matching items
-        for (int i = 0; i < inventory.size(); i++) {
-            ItemStack stack = inventory.getStack(i);
-            Item item = stack.getItem();
-            if (stack.isEmpty() || !required.containsKey(item)) continue;
+    static int available(int id) {
+        return syncIndex().total(id);
+    }
 
-            int modified = required.get(item) - stack.getCount();
-            if (modified <= 0) required.remove(item);
-            else required.put(item, modified);
+    // Clicks the planner needs with one fresh stack per item: a pickup, a click per slot and a put back
+    static long estimateClicks(JukeboxSong song, int from, int to) {
+        long clicks = 0;
+        boolean[] seen = new boolean[mappings.length];
+        for (int box = from; box < to; box++) {
+            Arrays.fill(seen, false);
+            clicks += FillPlan.SLOTS;
+            for (int slot = 0; slot < FillPlan.SLOTS; slot++) {
+                int id = canonical[song.plan.note(box, slot)];
+                if (seen[id]) continue;
+                seen[id] = true;
+                clicks += 2;
+            }
         }
+        return clicks;
+    }
 
-        // Compose an error message containing all remaining items
-        if (!required.isEmpty()) {
-            String[] missing = new String[required.size()];
-            int i = 0;
-            for (Map.Entry<Item, Integer> entry : required.entrySet())
-                missing[i++] = "- %s: %d".formatted(entry.getKey().getName().getString(), entry.getValue());
-            String message = "Missing items:\n%s".formatted(String.join(",\n", missing));
-            throw new IllegalStateException(message);
+    public static void onSlotUpdate(int syncId, int slot) {
+        ClientPlayerEntity player = MinecraftClient.getInstance().player;
+        if (player == null || player.getInventory() != indexed || INDEX.dirty) return;
+
+        int index = -1;
+        // -2 addresses the player inventory directly, -1 is the cursor stack
+        if (syncId == -2) index = slot;
+        else if (syncId >= 0) {
+            ScreenHandler handler = syncId == 0 ? player.playerScreenHandler : player.currentScreenHandler;
+            if (handler == null || handler.syncId != syncId || slot < 0 || slot >= handler.slots.size()) return;
+            Slot target = handler.getSlot(slot);
+            if (target.inventory == indexed) index = target.getIndex();
         }
+        if (index >= 0 && index < INVENTORY) refresh(indexed, index);
     }
 
-    private static void log(JukeboxSong.State state, JukeboxSong.Selection selection) {
-        StringBuilder builder = new StringBuilder();
-        builder.append("Inserting at [%d %d]:".formatted(state.track(), state.offset()));
+    // Full contents of a handler, simpler to rescan than to match slots
+    public static void onInventory() {
+        INDEX.dirty = true;
+    }
 
-        int length = 0;
-        StringBuilder temp = new StringBuilder();
-        List<String> items = new ArrayList<>(selection.items().length);
-        for (Item item : selection.items()) {
-            String name = item.getName().getString();
-            for (char c : name.toCharArray())
-                if (Character.isUpperCase(c))
-                    temp.append(c);
-            length = Math.max(length, temp.length());
-            items.add(temp.toString());
-            temp.setLength(0);
-        }
+    // Clicks made by anything else can move items arbitrarily
+    public static void onClick() {
+        if (!ClickScheduler.clicking) INDEX.dirty = true;
+    }
 
-        String padding = " ".repeat(length);
-        String[] entries = new String[9];
-        for (int i = 0; i < items.size(); i++) {
-            int mod = i % 9;
-            if (mod == 0) Arrays.fill(entries, padding);
-            entries[mod] = items.get(i) + " ".repeat(length - items.get(i).length());
-            if (mod == 8 || i == items.size() - 1)
-                builder.append("\n  [%s]".formatted(String.join(", ", entries)));
+    static InventoryIndex syncIndex() {
+        PlayerInventory inventory = MinecraftClient.getInstance().player.getInventory();
+        if (inventory != indexed || INDEX.dirty) {
+            for (int i = 0; i < INVENTORY; i++) refresh(inventory, i);
+            indexed = inventory;
+            INDEX.dirty = false;
         }
-        LOGGER.info(builder.toString());
+        return INDEX;
     }
 
-    @SuppressWarnings("DataFlowIssue")
-    private static void error(String message) {
-        MinecraftClient.getInstance().player.sendMessage(Text.of("§4[Jukebox]: " + message));
+    // Canonical id of the stack's item, -1 for empty or unmapped stacks
+    static int idOf(ItemStack stack) {
+        return stack.isEmpty() ? -1 : IDS.getInt(stack.getItem());
     }
 
-    private record SlotStack(int slot, ItemStack stack) implements Comparable<SlotStack> {
-        public Item getItem() {
-            return stack.getItem();
-        }
+    private static void refresh(PlayerInventory inventory, int index) {
+        ItemStack stack = inventory.getStack(index);
+        INDEX.set(index, stack.isEmpty() ? -1 : IDS.getInt(stack.getItem()), stack.getCount());
+    }
 
-        public int getCount() {
-            return stack.getCount();
+    // Every box goes through here, so the line is only built with debug logging on
+    private static void log(byte track, short offset) {
+        if (!LOGGER.isDebugEnabled()) return;
+        LOG.setLength(0);
+        LOG.append("Inserting at [").append(track).append(' ').append(offset).append("]:");
+        for (int slot = 0; slot < FillPlan.SLOTS; slot++) {
+            int mod = slot % 9;
+            LOG.append(mod == 0 ? "\n  [" : ", ").append(abbreviations[NOTES[slot]]);
+            if (mod == 8) LOG.append(']');
         }
+        LOGGER.debug(LOG.toString());
+    }
 
-        @Override
-        public int compareTo(@NotNull JukeboxManager.SlotStack o) {
-            return Integer.compare(getCount(), o.getCount());
-        }
+    @SuppressWarnings("DataFlowIssue")
+    static void error(String message) {
+        MinecraftClient.getInstance().player.sendMessage(Text.of("§4[Jukebox]: " + message));
+    }
+
+    static void info(String message) {
+        MinecraftClient.getInstance().player.sendMessage(Text.of("[Jukebox]: " + message));
     }
 }
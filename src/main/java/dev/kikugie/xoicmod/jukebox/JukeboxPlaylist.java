@@ -0,0 +1,141 @@
+package dev.kikugie.xoicmod.jukebox;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+// Songs to fill after the current one. The head of the queue is compiled in the background,
+// so switching at the end of a song only has to write the prepared state. Only touched on the client thread
+public class JukeboxPlaylist {
+    private static final Logger LOGGER = LoggerFactory.getLogger(JukeboxPlaylist.class);
+    private static final Path FILE = JukeboxFiles.CONFIG.resolve("queue.txt");
+    private static List<Path> queue = null;
+    private static Prefetch prefetch = null;
+
+    private record Compiled(JukeboxSong song, byte[] data) {
+    }
+
+    private record Prefetch(Path file, int mappings, CompletableFuture<Compiled> result) {
+        boolean ready() {
+            return result.isDone() && !result.isCompletedExceptionally();
+        }
+    }
+
+    static List<Path> entries() throws Exception {
+        if (queue == null) {
+            queue = new ArrayList<>();
+            if (Files.exists(FILE)) for (String line : Files.readAllLines(FILE, StandardCharsets.UTF_8))
+                if (!line.isBlank()) queue.add(Path.of(line.trim()));
+        }
+        return Collections.unmodifiableList(queue);
+    }
+
+    static void add(Path file) throws Exception {
+        entries();
+        queue.add(file);
+        save();
+        prefetch();
+    }
+
+    static void clear() throws Exception {
+        entries();
+        queue.clear();
+        save();
+        prefetch = null;
+    }
+
+    // Starts compiling the head of the queue unless it's already done for the current mappings
+    static void prefetch() throws Exception {
+        if (entries().isEmpty() || JukeboxManager.mappings.length == 0) return;
+        Path file = queue.get(0);
+        int mappings = JukeboxManager.mappings.length;
+        if (prefetch != null && prefetch.file.equals(file) && prefetch.mappings == mappings) return;
+
+        CompletableFuture<Compiled> result = CompletableFuture.supplyAsync(() -> compile(file, mappings), JukeboxWorkers.POOL);
+        Prefetch started = new Prefetch(file, mappings, result);
+        prefetch = started;
+        result.whenComplete((compiled, e) -> JukeboxTasks.client(() -> onCompiled(started, e)));
+    }
+
+    // Switches to the next song if it's ready, otherwise it starts as soon as it compiles
+    static void next() {
+        try {
+            // A song being loaded by hand replaces the current one anyway
+            if (entries().isEmpty() || JukeboxLoader.isLoading()) return;
+            prefetch();
+            // Songs are only compiled against loaded mappings, never on the client thread
+            if (prefetch == null) JukeboxManager.error("Mappings are not loaded, can't start the next song");
+            else if (prefetch.ready()) start(prefetch);
+            else JukeboxManager.info("Next song %s is still compiling".formatted(queue.get(0).getFileName()));
+        } catch (Exception e) {
+            JukeboxManager.error("Failed to start the next song: " + e.getMessage());
+            LOGGER.error("Failed to start the next song", e);
+        }
+    }
+
+    private static Compiled compile(Path file, int mappings) {
+        try {
+            byte[] nbs = Files.readAllBytes(file);
+            String key = JukeboxCache.enabled() ? JukeboxCache.key(nbs) : null;
+            byte[] cached = key == null ? null : JukeboxCache.get(key);
+            if (cached != null) try {
+                return new Compiled(JukeboxFiles.songOf(JukeboxFormat.decode(cached)), cached);
+            } catch (Exception e) {
+                LOGGER.warn("Discarding cached song {}", key, e);
+                JukeboxCache.invalidate(key);
+            }
+
+            JukeboxSong song = new JukeboxSong(JukeboxFiles.trackReader().readTracks(nbs), new JukeboxSong.State((byte) 0, JukeboxLayout.active().start()), mappings);
+            byte[] data = JukeboxFiles.encodeSongState(song);
+            if (key != null) JukeboxCache.put(key, data);
+            return new Compiled(song, data);
+        } catch (Exception e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    private static void onCompiled(Prefetch finished, Throwable e) {
+        if (prefetch != finished) return;
+        try {
+            if (e != null) {
+                // A broken song would block the queue forever, so it's dropped
+                Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                JukeboxManager.error("Skipping queued song %s: %s".formatted(finished.file.getFileName(), cause.getMessage()));
+                LOGGER.error("Failed to compile queued song", cause);
+                queue.remove(0);
+                save();
+                prefetch = null;
+                prefetch();
+                return;
+            }
+            if (JukeboxManager.current == null && !JukeboxLoader.isLoading() && !JukeboxRestore.isPending()) start(finished);
+        } catch (Exception ex) {
+            LOGGER.error("Failed to handle queued song", ex);
+        }
+    }
+
+    private static void start(Prefetch ready) throws Exception {
+        Compiled compiled = ready.result.join();
+        JukeboxFiles.commitSongState(JukeboxFiles.stageSongState(compiled.data));
+        JukeboxManager.current = compiled.song;
+        queue.remove(0);
+        save();
+        prefetch = null;
+        JukeboxManager.info("Started queued song %s, %d boxes".formatted(ready.file.getFileName(), compiled.song.plan.boxes()));
+        prefetch();
+    }
+
+    private static void save() throws Exception {
+        List<String> lines = new ArrayList<>(queue.size());
+        for (Path path : queue) lines.add(path.toAbsolutePath().toString());
+        Files.write(FILE, lines, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,122 @@
+package dev.kikugie.xoicmod.jukebox;
+
+import net.minecraft.client.MinecraftClient;
+import net.minecraft.client.gui.screen.ingame.ShulkerBoxScreen;
+import net.minecraft.item.Item;
+import net.minecraft.registry.Registries;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
+
+// Restores the saved song on join without decoding it. Only the position is read right away,
+// the notes are decoded on a worker when the first shulker box opens. Only touched on the client thread
+public class JukeboxRestore {
+    private static final Logger LOGGER = LoggerFactory.getLogger(JukeboxRestore.class);
+    private static JukeboxFormat.Header pending = null;
+    private static CompletableFuture<JukeboxSong> decoding = null;
+    // Commands that need the song, answered once it's decoded
+    private static final List<Consumer<JukeboxSong>> WAITING = new ArrayList<>();
+
+    public static void onJoin() {
+        try {
+            JukeboxConfig.reload();
+            // Mappings are cached by the file's modification time, so switching servers doesn't resolve them again
+            Item[] items = JukeboxFiles.readMappings(Registries.ITEM.getReadOnlyWrapper());
+            if (items != JukeboxManager.mappings) JukeboxManager.setMappings(items);
+
+            // The song in memory is the same as the saved one unless the mappings changed
+            JukeboxSong current = JukeboxManager.current;
+            if (current == null || current.mappings != items.length) {
+                discard();
+                JukeboxManager.current = null;
+                pending = JukeboxFiles.readSongHeader();
+            }
+            JukeboxPlaylist.prefetch();
+        } catch (Exception e) {
+            JukeboxManager.error("Failed to restore song: " + e.getMessage());
+            LOGGER.error("Failed to restore song", e);
+        }
+    }
+
+    static boolean isPending() {
+        return pending != null;
+    }
+
+    static @Nullable JukeboxFormat.Header header() {
+        return pending;
+    }
+
+    // Commands still waiting get no song, the one they asked about is gone
+    static void discard() {
+        pending = null;
+        decoding = null;
+        answer(null);
+    }
+
+    // Starts decoding the saved song, the box is filled once it's done
+    static void start() {
+        if (pending == null || decoding != null) return;
+        JukeboxManager.info("Restoring song at [%d %d]".formatted(pending.state().track(), pending.state().offset()));
+        CompletableFuture<JukeboxSong> started = CompletableFuture.supplyAsync(JukeboxRestore::decode, JukeboxWorkers.POOL);
+        decoding = started;
+        started.whenComplete((song, e) -> JukeboxTasks.client(() -> onDecoded(started, song, e)));
+    }
+
+    // Runs the action with the current song or null, after the saved one is decoded if it's still pending.
+    // The decode runs on a worker, so commands answer later instead of blocking the game
+    static void whenRestored(Consumer<JukeboxSong> action) {
+        if (pending == null) {
+            action.accept(JukeboxManager.current);
+            return;
+        }
+        WAITING.add(action);
+        start();
+    }
+
+    private static void answer(@Nullable JukeboxSong song) {
+        if (WAITING.isEmpty()) return;
+        List<Consumer<JukeboxSong>> actions = List.copyOf(WAITING);
+        WAITING.clear();
+        for (Consumer<JukeboxSong> action : actions) action.accept(song);
+    }
+
+    private static JukeboxSong decode() {
+        try {
+            JukeboxSong song = JukeboxFiles.readSongState();
+            if (song == null) throw new IllegalStateException("Song file was removed");
+            return song;
+        } catch (Exception e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    private static void onDecoded(CompletableFuture<JukeboxSong> finished, JukeboxSong song, Throwable e) {
+        if (decoding != finished) return;
+        if (e != null) {
+            fail(e);
+            return;
+        }
+        publish(song);
+        if (MinecraftClient.getInstance().currentScreen instanceof ShulkerBoxScreen screen) JukeboxManager.handle(screen);
+    }
+
+    private static void publish(JukeboxSong song) {
+        pending = null;
+        decoding = null;
+        JukeboxManager.current = song;
+        answer(song);
+    }
+
+    private static void fail(Throwable e) {
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        JukeboxManager.error("Failed to restore song: " + cause.getMessage());
+        LOGGER.error("Failed to restore song", cause);
+        discard();
+    }
+}
@@ -0,0 +1,169 @@
+package dev.kikugie.xoicmod.jukebox;
+
+import net.minecraft.client.MinecraftClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+// Fill timings per shulker box, measured from the screen opening. Latencies are kept in microseconds
+public class JukeboxStats {
+    private static final Logger LOGGER = LoggerFactory.getLogger(JukeboxStats.class);
+    private static final Path CSV = JukeboxFiles.CONFIG.resolve("stats.csv");
+    private static final String HEADER = "time,boxes,boxes_per_min,clicks_p50,clicks_p99,last_click_p50,last_click_p99,confirmed_p50,confirmed_p99,saved_p50,saved_p99,journal_writes,journal_p99,song_writes,song_bytes,song_p99";
+
+    static final Histogram TO_LAST_CLICK = new Histogram();
+    static final Histogram TO_CONFIRMED = new Histogram();
+    static final Histogram TO_SAVED = new Histogram();
+    static final Histogram CLICKS = new Histogram();
+    // Position records written and synced by the journal
+    static final Histogram JOURNAL_TIME = new Histogram();
+    // Whole songs staged by loads and playlist switches
+    static final Histogram SONG_TIME = new Histogram();
+    static final Histogram SONG_BYTES = new Histogram();
+
+    // Finish times of the last boxes, for the current rate
+    private static final long[] FINISHED = new long[32];
+    private static int finished = 0;
+
+    private static long opened = -1;
+    private static long lastClick = -1;
+    private static long confirmed = -1;
+    private static int clicks = 0;
+    private static long exported = 0;
+    // Milliseconds between CSV exports, set when the config is loaded
+    private static volatile long exportInterval = 0;
+
+    public static synchronized void onScreenOpened() {
+        opened = System.nanoTime();
+        lastClick = -1;
+        confirmed = -1;
+        clicks = 0;
+    }
+
+    static synchronized void onClicks(int count) {
+        clicks += count;
+        lastClick = System.nanoTime();
+    }
+
+    static synchronized void onConfirmed() {
+        confirmed = System.nanoTime();
+    }
+
+    static synchronized void onSaved() {
+        if (opened == -1) return;
+        long now = System.nanoTime();
+        if (lastClick != -1) TO_LAST_CLICK.record((lastClick - opened) / 1000);
+        if (confirmed != -1) TO_CONFIRMED.record((confirmed - opened) / 1000);
+        TO_SAVED.record((now - opened) / 1000);
+        CLICKS.record(clicks);
+        FINISHED[finished++ % FINISHED.length] = now;
+        opened = -1;
+    }
+
+    // Called from the journal thread
+    static synchronized void onJournalWritten(long start) {
+        JOURNAL_TIME.record((System.nanoTime() - start) / 1000);
+    }
+
+    // Called from the loader as well, so this can run off the client thread
+    static synchronized void onSongWritten(long start, long bytes) {
+        SONG_TIME.record((System.nanoTime() - start) / 1000);
+        SONG_BYTES.record(bytes);
+    }
+
+    static synchronized void reset() {
+        for (Histogram histogram : List.of(TO_LAST_CLICK, TO_CONFIRMED, TO_SAVED, CLICKS, JOURNAL_TIME, SONG_TIME, SONG_BYTES))
+            histogram.reset();
+        finished = 0;
+    }
+
+    // Boxes per minute over the recent boxes, 0 until there are two of them
+    static synchronized double rate() {
+        int count = Math.min(finished, FINISHED.length);
+        if (count < 2) return 0;
+        long last = FINISHED[(finished - 1) % FINISHED.length];
+        long first = FINISHED[(finished - count) % FINISHED.length];
+        return last == first ? 0 : (count - 1) * 60e9 / (last - first);
+    }
+
+    static synchronized String summary(JukeboxSong song) {
+        StringBuilder text = new StringBuilder();
+        double rate = rate();
+        text.append("Boxes: %d, %.1f boxes/min".formatted(TO_SAVED.count(), rate));
+        if (song != null) {
+            int remaining = song.plan.boxes() - song.box;
+            text.append("\n%d boxes left".formatted(remaining));
+            if (rate > 0) text.append(", ETA ").append(duration((long) (remaining / rate * 60)));
+        }
+        text.append("\nTo last click: ").append(latency(TO_LAST_CLICK));
+        text.append("\nTo confirmed: ").append(latency(TO_CONFIRMED));
+        text.append("\nTo saved: ").append(latency(TO_SAVED));
+        text.append("\nClicks per box: mean %.1f, p50 %d, p99 %d".formatted(CLICKS.mean(), CLICKS.percentile(0.5), CLICKS.percentile(0.99)));
+        text.append("\nJournal writes: %d, %s".formatted(JOURNAL_TIME.count(), latency(JOURNAL_TIME)));
+        text.append("\nSong writes: %d, %.0f bytes avg, %s".formatted(SONG_TIME.count(), SONG_BYTES.mean(), latency(SONG_TIME)));
+        return text.toString();
+    }
+
+    // Clicks and time for the boxes from what was measured so far, the planned clicks are used until then
+    static synchronized String estimate(int boxes, long planned) {
+        long clicks = CLICKS.count() > 0 ? Math.round(CLICKS.mean() * boxes) : planned;
+        String text = "About %d clicks".formatted(clicks);
+        double rate = rate();
+        if (rate > 0) return text + " and " + duration((long) (boxes / rate * 60));
+        if (TO_SAVED.count() > 0) return text + " and " + duration((long) (TO_SAVED.mean() * boxes / 1e6)) + " of filling, without moving between boxes";
+        return text + ", fill a few boxes for a time estimate";
+    }
+
+    private static String duration(long seconds) {
+        return "%d:%02d:%02d".formatted(seconds / 3600, seconds / 60 % 60, seconds % 60);
+    }
+
+    private static String latency(Histogram histogram) {
+        return "p50 %.1f ms, p90 %.1f ms, p99 %.1f ms".formatted(
+            histogram.percentile(0.5) / 1000.0,
+            histogram.percentile(0.9) / 1000.0,
+            histogram.percentile(0.99) / 1000.0);
+    }
+
+    static void setExportInterval(long seconds) {
+        exportInterval = seconds * 1000;
+    }
+
+    public static void tick(MinecraftClient client) {
+        long interval = exportInterval;
+        if (interval <= 0) return;
+        long now = System.currentTimeMillis();
+        if (now - exported < interval) return;
+        exported = now;
+        if (TO_SAVED.count() > 0) export();
+    }
+
+    // Snapshots on the calling thread, the file is written on a worker
+    static Path export() {
+        String row;
+        synchronized (JukeboxStats.class) {
+            row = "%d,%d,%.2f,%d,%d,%d,%d,%d,%d,%d,%d,%d,%d,%d,%d,%d".formatted(
+                System.currentTimeMillis(), TO_SAVED.count(), rate(),
+                CLICKS.percentile(0.5), CLICKS.percentile(0.99),
+                TO_LAST_CLICK.percentile(0.5), TO_LAST_CLICK.percentile(0.99),
+                TO_CONFIRMED.percentile(0.5), TO_CONFIRMED.percentile(0.99),
+                TO_SAVED.percentile(0.5), TO_SAVED.percentile(0.99),
+                JOURNAL_TIME.count(), JOURNAL_TIME.percentile(0.99),
+                SONG_TIME.count(), SONG_BYTES.sum(), SONG_TIME.percentile(0.99));
+        }
+        JukeboxWorkers.POOL.execute(() -> {
+            try {
+                if (!Files.exists(CSV)) Files.writeString(CSV, HEADER + "\n", StandardCharsets.UTF_8);
+                Files.writeString(CSV, row + "\n", StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+            } catch (Exception e) {
+                LOGGER.error("Failed to export stats", e);
+            }
+        });
+        return CSV;
+    }
+}
@@ -0,0 +1,9 @@
+package dev.kikugie.xoicmod.jukebox;
+
+import net.minecraft.client.MinecraftClient;
+
+public class JukeboxTasks {
+    static void client(Runnable task) {
+        MinecraftClient.getInstance().execute(task);
+    }
+}
@@ -0,0 +1,83 @@
+package dev.kikugie.xoicmod.jukebox;
+
+import net.minecraft.item.ItemStack;
+import net.minecraft.network.packet.s2c.play.InventoryS2CPacket;
+import net.minecraft.network.packet.s2c.play.ScreenHandlerSlotUpdateS2CPacket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// Records inventory packets and opened boxes to trace.txt, in the format JukeboxSimulator replays.
+// Items are written as canonical note ids. Only touched on the client thread
+public class JukeboxTrace {
+    private static final Logger LOGGER = LoggerFactory.getLogger(JukeboxTrace.class);
+    static final Path FILE = JukeboxFiles.CONFIG.resolve("trace.txt");
+    private static BufferedWriter writer = null;
+
+    static boolean isRecording() {
+        return writer != null;
+    }
+
+    static void start() throws IOException {
+        if (writer != null) return;
+        writer = Files.newBufferedWriter(FILE, StandardCharsets.UTF_8);
+    }
+
+    static void stop() throws IOException {
+        if (writer == null) return;
+        BufferedWriter closing = writer;
+        writer = null;
+        closing.close();
+    }
+
+    public static void onInventory(InventoryS2CPacket packet) {
+        if (writer == null) return;
+        StringBuilder line = new StringBuilder("inventory ").append(packet.getSyncId());
+        for (ItemStack stack : packet.getContents()) line.append(' ').append(stack(stack));
+        line.append(' ').append(stack(packet.getCursorStack()));
+        write(line.toString());
+    }
+
+    public static void onSlotUpdate(ScreenHandlerSlotUpdateS2CPacket packet) {
+        if (writer == null) return;
+        write("slot %d %d %s".formatted(packet.getSyncId(), packet.getSlot(), stack(packet.getStack())));
+    }
+
+    static void onOpen() {
+        if (writer == null) return;
+        write("open");
+        try {
+            writer.flush();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private static String stack(ItemStack stack) {
+        if (stack.isEmpty()) return "-";
+        int id = JukeboxManager.idOf(stack);
+        return (id < 0 ? "?" : Integer.toString(id)) + ':' + stack.getCount();
+    }
+
+    private static void write(String line) {
+        try {
+            writer.write(line);
+            writer.newLine();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private static void fail(IOException e) {
+        LOGGER.error("Failed to write trace, stopping", e);
+        try {
+            stop();
+        } catch (IOException ignored) {
+        }
+    }
+}
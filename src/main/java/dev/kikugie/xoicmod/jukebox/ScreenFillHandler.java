@@ -0,0 +1,96 @@
+package dev.kikugie.xoicmod.jukebox;
+
+import net.minecraft.client.MinecraftClient;
+import net.minecraft.client.network.ClientPlayerEntity;
+import net.minecraft.entity.player.PlayerInventory;
+import net.minecraft.item.ItemStack;
+import net.minecraft.screen.ScreenHandler;
+import net.minecraft.screen.slot.Slot;
+import net.minecraft.screen.slot.SlotActionType;
+
+import java.util.Arrays;
+
+// The open shulker box screen as seen by BoxFiller. Reused for every box, slot ids are only resolved when the handler layout changes
+@SuppressWarnings("DataFlowIssue")
+final class ScreenFillHandler implements FillHandler {
+    // Indexed by the FillHandler action ids
+    private static final SlotActionType[] ACTIONS = {SlotActionType.PICKUP, SlotActionType.SWAP, SlotActionType.QUICK_MOVE};
+
+    private final int[] inventorySlots = new int[JukeboxManager.INVENTORY];
+    private final int[] boxSlots = new int[FillPlan.SLOTS];
+    private Class<?> layout = null;
+    private int layoutSize = -1;
+    ScreenHandler handler = null;
+
+    void attach(ScreenHandler handler) {
+        this.handler = handler;
+        if (handler.getClass() == layout && handler.slots.size() == layoutSize) return;
+        layout = null;
+        Arrays.fill(inventorySlots, -1);
+        Arrays.fill(boxSlots, -1);
+        for (Slot slot : handler.slots) {
+            int index = slot.getIndex();
+            if (slot.inventory instanceof PlayerInventory) {
+                if (index < JukeboxManager.INVENTORY) inventorySlots[index] = slot.id;
+            } else if (index < FillPlan.SLOTS) boxSlots[index] = slot.id;
+        }
+        for (int id : boxSlots)
+            if (id == -1) throw new IllegalStateException("Screen has no slot for every box position");
+        layout = handler.getClass();
+        layoutSize = handler.slots.size();
+    }
+
+    @Override
+    public int boxSlot(int position) {
+        return boxSlots[position];
+    }
+
+    @Override
+    public int inventorySlot(int index) {
+        return inventorySlots[index];
+    }
+
+    @Override
+    public int boxItem(int position) {
+        return JukeboxManager.idOf(handler.getSlot(boxSlots[position]).getStack());
+    }
+
+    @Override
+    public int boxCount(int position) {
+        ItemStack stack = handler.getSlot(boxSlots[position]).getStack();
+        return stack.isEmpty() ? 0 : stack.getCount();
+    }
+
+    @Override
+    public boolean isEmpty(int index) {
+        return MinecraftClient.getInstance().player.getInventory().getStack(index).isEmpty();
+    }
+
+    @Override
+    public boolean holding() {
+        return !handler.getCursorStack().isEmpty();
+    }
+
+    // The filler's index is the one JukeboxManager keeps up to date from packets
+    @Override
+    public void sync(InventoryIndex index) {
+        JukeboxManager.syncIndex();
+    }
+
+    @Override
+    public int revision() {
+        return handler.getRevision();
+    }
+
+    @Override
+    public void click(int slot, int button, int action) {
+        MinecraftClient client = MinecraftClient.getInstance();
+        ClientPlayerEntity player = client.player;
+        client.interactionManager.clickSlot(handler.syncId, slot, button, ACTIONS[action], player);
+    }
+
+    @Override
+    public String name(int id) {
+        return JukeboxManager.mappings[id].getName().getString();
+    }
+}
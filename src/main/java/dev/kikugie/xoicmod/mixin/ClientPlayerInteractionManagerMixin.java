@@ -0,0 +1,16 @@
+package dev.kikugie.xoicmod.mixin;
+
+import dev.kikugie.xoicmod.jukebox.JukeboxManager;
+import net.minecraft.client.network.ClientPlayerInteractionManager;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
+
+@Mixin(ClientPlayerInteractionManager.class)
+public class ClientPlayerInteractionManagerMixin {
+    @Inject(method = "clickSlot", at = @At("TAIL"))
+    private void onClickSlot(CallbackInfo ci) {
+        JukeboxManager.onClick();
+    }
+}
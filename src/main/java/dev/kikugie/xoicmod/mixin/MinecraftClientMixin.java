@@ -1,6 +1,7 @@
 package dev.kikugie.xoicmod.mixin;
 
 import dev.kikugie.xoicmod.ProcessableScreen;
+import dev.kikugie.xoicmod.jukebox.JukeboxStats;
 import net.minecraft.client.MinecraftClient;
 import net.minecraft.client.gui.screen.Screen;
 import net.minecraft.client.gui.screen.ingame.ShulkerBoxScreen;
@@ -13,7 +14,8 @@ import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
 public class MinecraftClientMixin {
     @Inject(method = "setScreen", at = @At("HEAD"))
     private void onSetScreen(Screen screen, CallbackInfo ci) {
-        if (screen instanceof ShulkerBoxScreen) ((ProcessableScreen) screen)
-            .xoicmod$setShouldProcess(true);
+        if (!(screen instanceof ShulkerBoxScreen)) return;
+        ((ProcessableScreen) screen).xoicmod$setShouldProcess(true);
+        JukeboxStats.onScreenOpened();
     }
 }